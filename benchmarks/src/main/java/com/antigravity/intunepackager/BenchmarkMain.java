@@ -0,0 +1,47 @@
+package com.antigravity.intunepackager;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Takes the usual JMH command line
+ * ({@code -l}, {@code -p sizeMb=100}, a benchmark regex, ...) but writes the
+ * results as JSON by default, to {@code jmh-result-<timestamp>.json} or the
+ * file given with {@code -rff}, so runs from different commits can be kept
+ * side by side and compared.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        Runner listing = new Runner(cli);
+        if (cli.shouldList()) {
+            listing.list();
+            return;
+        }
+        if (cli.shouldListWithParams()) {
+            listing.listWithParams(cli);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if (cli.getResultFormat().orElse(null) == null) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (cli.getResult().orElse(null) == null) {
+            options.result("jmh-result-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"))
+                    + ".json");
+        }
+        new Runner(options.build()).run();
+    }
+}
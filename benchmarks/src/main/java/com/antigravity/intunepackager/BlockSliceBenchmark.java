@@ -0,0 +1,125 @@
+package com.antigravity.intunepackager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cutting the encrypted content into upload blocks, without the network:
+ * a fresh heap array per block against the uploader's pooled direct
+ * buffers, with and without an MD5 per block (what a Content-MD5 header
+ * costs), plus the block IDs for the whole file.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockSliceBenchmark {
+
+    @Param({"512"})
+    public int sizeMb;
+
+    @Param({"4", "6", "16", "64"})
+    public int blockMb;
+
+    private Path dir;
+    private Path file;
+    private FileChannel channel;
+    private long size;
+    private int blockSize;
+    private int blockCount;
+
+    @Setup(Level.Trial)
+    public void createPayload() throws Exception {
+        dir = Payloads.tempDir("bench-blocks");
+        file = Payloads.write(dir.resolve("IntunePackage.intunewin"), sizeMb * Payloads.MB, Payloads.Content.RANDOM);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+        blockSize = (int) (blockMb * Payloads.MB);
+        blockCount = (int) ((size + blockSize - 1) / blockSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void deletePayload() throws Exception {
+        channel.close();
+        Payloads.delete(dir);
+    }
+
+    @Benchmark
+    public void heapBlocks(Blackhole bh) throws Exception {
+        for (int i = 0; i < blockCount; i++) {
+            bh.consume(readHeap(i));
+        }
+    }
+
+    @Benchmark
+    public void heapBlocksMd5(Blackhole bh) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int i = 0; i < blockCount; i++) {
+            bh.consume(md5.digest(readHeap(i)));
+        }
+    }
+
+    @Benchmark
+    public void pooledBuffers(Blackhole bh) throws Exception {
+        for (int i = 0; i < blockCount; i++) {
+            ByteBuffer buffer = BlockBufferPool.getShared().acquire(length(i));
+            bh.consume(BlockBlobUploader.readBlock(channel, (long) i * blockSize, buffer));
+            BlockBufferPool.getShared().release(buffer);
+        }
+    }
+
+    @Benchmark
+    public void pooledBuffersMd5(Blackhole bh) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int i = 0; i < blockCount; i++) {
+            ByteBuffer buffer = BlockBufferPool.getShared().acquire(length(i));
+            md5.update(BlockBlobUploader.readBlock(channel, (long) i * blockSize, buffer));
+            bh.consume(md5.digest());
+            BlockBufferPool.getShared().release(buffer);
+        }
+    }
+
+    @Benchmark
+    public void blockIds(Blackhole bh) {
+        for (int i = 0; i < blockCount; i++) {
+            bh.consume(BlockBlobUploader.blockId(i));
+        }
+    }
+
+    /** What the uploader did before blocks were pooled. */
+    private byte[] readHeap(int index) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length(index));
+        long position = (long) index * blockSize;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IllegalStateException("Unexpected end of file");
+            }
+        }
+        return buffer.array();
+    }
+
+    private int length(int index) {
+        return (int) Math.min(blockSize, size - (long) index * blockSize);
+    }
+}
@@ -0,0 +1,609 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.authentication.AnonymousAuthenticationProvider;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the parts of Graph and Azure Blob Storage that an
+ * upload touches: mobileApps, contentVersions, content files (with their
+ * uploadState transitions), commit, renewUpload, JSON $batch, Put Block and
+ * Put Block List.
+ *
+ * Served by {@code com.sun.net.httpserver} on 127.0.0.1 with a virtual
+ * thread per exchange. {@link Config} adds per-request latency, a shared
+ * upload bandwidth cap, injected block failures and throttling, and the
+ * time Intune takes to allocate a storage URI or commit a file, so the
+ * upload code can be measured under realistic conditions without a tenant.
+ *
+ * Block contents are counted, not kept; the server checks what Azure
+ * checks (Content-MD5 when sent, equal-length block IDs of at most 64
+ * bytes, blocks over 100 MiB only with x-ms-version 2019-12-12 or later,
+ * every listed block uploaded, at most 50,000 blocks in the list,
+ * committed size matching the file's sizeEncrypted).
+ */
+public class FakeIntuneServer implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(FakeIntuneServer.class.getName());
+
+    private static final String GRAPH_PREFIX = "/v1.0";
+    private static final String BLOB_PREFIX = "/blob/";
+    private static final Pattern APP = Pattern.compile("/deviceAppManagement/mobileApps/([^/]+)");
+    private static final Pattern CONTENT_VERSIONS = Pattern.compile(APP.pattern() + "/[^/]+/contentVersions");
+    private static final Pattern FILES = Pattern.compile(CONTENT_VERSIONS.pattern() + "/([^/]+)/files");
+    private static final Pattern FILE = Pattern.compile(FILES.pattern() + "/([^/]+)(/commit|/renewUpload)?");
+    private static final Pattern LATEST = Pattern.compile("<Latest>([^<]*)</Latest>");
+    private static final int MAX_BLOCK_ID_BYTES = 64;
+    private static final int MAX_BLOCKS = 50_000;
+    /** Block size limit for requests without a recent x-ms-version (Intune's SAS tokens are older). */
+    private static final long LEGACY_MAX_BLOCK_BYTES = 100L * 1024 * 1024;
+    private static final String LARGE_BLOCK_API_VERSION = "2019-12-12";
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    /** Network and service behaviour of the fake; all off by default. */
+    public static class Config {
+        private Duration latency = Duration.ZERO;
+        private Duration latencyJitter = Duration.ZERO;
+        private long uploadBytesPerSecond;
+        private double blockFailureRate;
+        private double throttleRate;
+        private Duration storageUriDelay = Duration.ofMillis(500);
+        private Duration commitDelay = Duration.ofSeconds(1);
+
+        /** Added before every response, plus up to {@code jitter} more. */
+        public Config latency(Duration latency, Duration jitter) {
+            this.latency = latency;
+            this.latencyJitter = jitter;
+            return this;
+        }
+
+        /** Total Put Block ingress across all connections; 0 for unlimited. */
+        public Config uploadBandwidth(long bytesPerSecond) {
+            this.uploadBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /** Fraction of Put Block requests answered with HTTP 500 after the body was read. */
+        public Config blockFailureRate(double rate) {
+            this.blockFailureRate = rate;
+            return this;
+        }
+
+        /** Fraction of Graph requests answered with 429 and of Put Blocks with 503, both with Retry-After: 1. */
+        public Config throttleRate(double rate) {
+            this.throttleRate = rate;
+            return this;
+        }
+
+        /** How long a new or renewed file stays in the *Pending state before its SAS URI is ready. */
+        public Config storageUriDelay(Duration delay) {
+            this.storageUriDelay = delay;
+            return this;
+        }
+
+        /** How long a committed file stays in commitFilePending. */
+        public Config commitDelay(Duration delay) {
+            this.commitDelay = delay;
+            return this;
+        }
+    }
+
+    private record Response(int status, JsonObject body, Map<String, String> headers) {
+        static Response json(int status, JsonObject body) {
+            return new Response(status, body, Map.of());
+        }
+
+        static Response error(int status, String code, String message) {
+            JsonObject error = new JsonObject();
+            error.addProperty("code", code);
+            error.addProperty("message", message);
+            JsonObject body = new JsonObject();
+            body.add("error", error);
+            return json(status, body);
+        }
+
+        static Response throttled() {
+            Response busy = error(429, "TooManyRequests", "Injected throttling");
+            return new Response(429, busy.body(), Map.of("Retry-After", "1"));
+        }
+    }
+
+    /** A content file and its uploadState machine. */
+    private class ContentFile {
+        final String id = UUID.randomUUID().toString();
+        final long sizeEncrypted;
+        String state = "azureStorageUriRequestPending";
+        String nextState = "azureStorageUriRequestSuccess";
+        long readyAt = System.nanoTime() + config.storageUriDelay.toNanos();
+
+        ContentFile(long sizeEncrypted) {
+            this.sizeEncrypted = sizeEncrypted;
+        }
+
+        synchronized void transition(String pending, String next, Duration delay) {
+            state = pending;
+            nextState = next;
+            readyAt = System.nanoTime() + delay.toNanos();
+        }
+
+        synchronized JsonObject toJson() {
+            if (nextState != null && System.nanoTime() >= readyAt) {
+                state = nextState;
+                nextState = null;
+            }
+            JsonObject json = new JsonObject();
+            json.addProperty("@odata.type", "#microsoft.graph.mobileAppContentFile");
+            json.addProperty("id", id);
+            json.addProperty("sizeEncrypted", sizeEncrypted);
+            json.addProperty("uploadState", state);
+            if (state.startsWith("azureStorageUri") && state.endsWith("Success")) {
+                json.addProperty("azureStorageUri", blobBaseUrl() + id + "?sv=2023-11-03&sr=b&sp=cw&sig=fake");
+                json.addProperty("azureStorageUriExpirationDateTime", Instant.now().plus(Duration.ofHours(1))
+                        .toString());
+            }
+            return json;
+        }
+    }
+
+    /** Uncommitted block sizes and the committed length of one blob. */
+    private static class Blob {
+        final Map<String, Long> blocks = new ConcurrentHashMap<>();
+        volatile int blockIdLength = -1;
+        volatile long committedLength = -1;
+    }
+
+    private final Config config;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, JsonObject> apps = new ConcurrentHashMap<>();
+    private final Map<String, ContentFile> files = new ConcurrentHashMap<>();
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final AtomicInteger contentVersionIds = new AtomicInteger();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Object pacerLock = new Object();
+    private long nextFreeNanos;
+
+    private FakeIntuneServer(Config config) throws IOException {
+        this.config = config;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext(GRAPH_PREFIX + "/", this::handleGraph);
+        server.createContext(BLOB_PREFIX, this::handleBlob);
+        server.start();
+        LOGGER.info("Fake Intune endpoints listening on " + getGraphBaseUrl());
+    }
+
+    public static FakeIntuneServer start(Config config) throws IOException {
+        return new FakeIntuneServer(config);
+    }
+
+    public String getGraphBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + GRAPH_PREFIX;
+    }
+
+    /** SDK client for the metadata POST, pointed at this server. */
+    public GraphServiceClient newGraphClient() {
+        GraphServiceClient client = new GraphServiceClient(new AnonymousAuthenticationProvider());
+        client.getRequestAdapter().setBaseUrl(getGraphBaseUrl());
+        return client;
+    }
+
+    /** Batcher for the raw Graph calls, pointed at this server. */
+    public GraphBatcher newGraphBatcher(HttpClient httpClient, ThrottleGovernor governor) {
+        return new GraphBatcher(new GraphRestClient(httpClient, () -> "fake-token", getGraphBaseUrl(), governor));
+    }
+
+    /** Requests, injected faults and bytes received so far, by name. */
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        new TreeMap<>(counters).forEach((name, value) -> stats.addProperty(name, value.sum()));
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+
+    // ==========================================
+    // Graph
+    // ==========================================
+
+    private void handleGraph(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            delay();
+            String path = exchange.getRequestURI().getPath().substring(GRAPH_PREFIX.length());
+            JsonObject body = readJson(exchange.getRequestBody());
+            Response response = "/$batch".equals(path) && "POST".equals(exchange.getRequestMethod())
+                    ? batch(body)
+                    : graph(exchange.getRequestMethod(), path, body);
+            send(exchange, response);
+        } catch (RuntimeException e) {
+            LOGGER.warning("Fake Graph request failed: " + e);
+            send(exchange, Response.error(500, "InternalServerError", e.toString()));
+        }
+    }
+
+    private Response batch(JsonObject envelope) {
+        count("graph.batch");
+        Map<String, Integer> statuses = new HashMap<>();
+        JsonArray responses = new JsonArray();
+        for (JsonElement element : envelope.getAsJsonArray("requests")) {
+            JsonObject request = element.getAsJsonObject();
+            String id = request.get("id").getAsString();
+            boolean dependencyFailed = false;
+            if (request.has("dependsOn")) {
+                for (JsonElement dependency : request.getAsJsonArray("dependsOn")) {
+                    dependencyFailed |= statuses.getOrDefault(dependency.getAsString(), 0) / 100 != 2;
+                }
+            }
+            Response response = dependencyFailed
+                    ? Response.error(424, "FailedDependency", "A dependency failed")
+                    : graph(request.get("method").getAsString(), request.get("url").getAsString(),
+                            request.has("body") ? request.getAsJsonObject("body") : null);
+            statuses.put(id, response.status());
+
+            JsonObject item = new JsonObject();
+            item.addProperty("id", id);
+            item.addProperty("status", response.status());
+            if (!response.headers().isEmpty()) {
+                JsonObject headers = new JsonObject();
+                response.headers().forEach(headers::addProperty);
+                item.add("headers", headers);
+            }
+            if (response.body() != null) {
+                item.add("body", response.body());
+            }
+            responses.add(item);
+        }
+        JsonObject reply = new JsonObject();
+        reply.add("responses", responses);
+        return Response.json(200, reply);
+    }
+
+    private Response graph(String method, String path, JsonObject body) {
+        if (roll(config.throttleRate)) {
+            count("graph.throttled");
+            return Response.throttled();
+        }
+        Matcher m;
+        if ("POST".equals(method) && path.equals("/deviceAppManagement/mobileApps")) {
+            count("graph.app.create");
+            JsonObject app = body.deepCopy();
+            String id = UUID.randomUUID().toString();
+            app.addProperty("id", id);
+            apps.put(id, app);
+            return Response.json(201, app);
+        }
+        if ((m = APP.matcher(path)).matches()) {
+            JsonObject app = apps.get(m.group(1));
+            if (app == null) {
+                return Response.error(404, "ResourceNotFound", "No app " + m.group(1));
+            }
+            if ("PATCH".equals(method)) {
+                count("graph.app.patch");
+                synchronized (app) {
+                    body.entrySet().stream().filter(e -> !e.getKey().startsWith("@odata"))
+                            .forEach(e -> app.add(e.getKey(), e.getValue()));
+                }
+                return Response.json(204, null);
+            }
+            count("graph.app.get");
+            synchronized (app) {
+                return Response.json(200, app.deepCopy());
+            }
+        }
+        if ("POST".equals(method) && (m = CONTENT_VERSIONS.matcher(path)).matches()) {
+            count("graph.contentVersion.create");
+            JsonObject version = new JsonObject();
+            version.addProperty("id", String.valueOf(contentVersionIds.incrementAndGet()));
+            return Response.json(201, version);
+        }
+        if ("POST".equals(method) && (m = FILES.matcher(path)).matches()) {
+            count("graph.file.create");
+            ContentFile file = new ContentFile(body.get("sizeEncrypted").getAsLong());
+            files.put(file.id, file);
+            blobs.put(file.id, new Blob());
+            return Response.json(201, file.toJson());
+        }
+        if ((m = FILE.matcher(path)).matches()) {
+            ContentFile file = files.get(m.group(3));
+            if (file == null) {
+                return Response.error(404, "ResourceNotFound", "No content file " + m.group(3));
+            }
+            String action = m.group(4);
+            if ("/commit".equals(action)) {
+                count("graph.file.commit");
+                long committed = blobs.get(file.id).committedLength;
+                boolean complete = committed == file.sizeEncrypted;
+                if (!complete) {
+                    LOGGER.warning("Commit of " + file.id + " with " + committed + " of " + file.sizeEncrypted
+                            + " bytes");
+                }
+                file.transition("commitFilePending", complete ? "commitFileSuccess" : "commitFileFailed",
+                        config.commitDelay);
+                return Response.json(200, null);
+            }
+            if ("/renewUpload".equals(action)) {
+                count("graph.file.renew");
+                file.transition("azureStorageUriRenewalPending", "azureStorageUriRenewalSuccess",
+                        config.storageUriDelay);
+                return Response.json(204, null);
+            }
+            count("graph.file.get");
+            return Response.json(200, file.toJson());
+        }
+        count("graph.notFound");
+        return Response.error(404, "NotFound", method + " " + path + " is not faked");
+    }
+
+    // ==========================================
+    // Blob Storage
+    // ==========================================
+
+    private void handleBlob(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            delay();
+            String name = exchange.getRequestURI().getPath().substring(BLOB_PREFIX.length());
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            Blob blob = blobs.get(name);
+            if (blob == null || !"PUT".equals(exchange.getRequestMethod())) {
+                drain(exchange.getRequestBody(), false);
+                sendText(exchange, 404, "BlobNotFound");
+                return;
+            }
+            if ("block".equals(query.get("comp"))) {
+                putBlock(exchange, blob, query.get("blockid"));
+            } else if ("blocklist".equals(query.get("comp"))) {
+                putBlockList(exchange, blob);
+            } else {
+                drain(exchange.getRequestBody(), false);
+                sendText(exchange, 400, "UnsupportedOperation");
+            }
+        }
+    }
+
+    private void putBlock(HttpExchange exchange, Blob blob, String blockId) throws IOException {
+        count("blob.putBlock");
+        String contentMd5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+        MessageDigest md5 = contentMd5 != null ? newMd5() : null;
+        long bytes = drain(exchange.getRequestBody(), true, md5);
+        if (md5 != null && !contentMd5.equals(Base64.getEncoder().encodeToString(md5.digest()))) {
+            count("blob.md5Mismatch");
+            sendText(exchange, 400, "Md5Mismatch");
+            return;
+        }
+        String version = exchange.getRequestHeaders().getFirst("x-ms-version");
+        if (bytes > LEGACY_MAX_BLOCK_BYTES && (version == null || version.compareTo(LARGE_BLOCK_API_VERSION) < 0)) {
+            count("blob.blockTooLarge");
+            sendText(exchange, 413, "RequestBodyTooLarge");
+            return;
+        }
+        if (blockId == null || blockId.isEmpty()) {
+            sendText(exchange, 400, "InvalidQueryParameterValue");
+            return;
+        }
+        try {
+            if (Base64.getDecoder().decode(blockId).length > MAX_BLOCK_ID_BYTES) {
+                sendText(exchange, 400, "InvalidBlobOrBlock");
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            sendText(exchange, 400, "InvalidQueryParameterValue");
+            return;
+        }
+        synchronized (blob) {
+            if (blob.blockIdLength < 0) {
+                blob.blockIdLength = blockId.length();
+            } else if (blob.blockIdLength != blockId.length()) {
+                count("blob.invalidBlockId");
+                sendText(exchange, 400, "InvalidBlobOrBlock");
+                return;
+            }
+        }
+        if (roll(config.throttleRate)) {
+            count("blob.throttled");
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            sendText(exchange, 503, "ServerBusy");
+            return;
+        }
+        if (roll(config.blockFailureRate)) {
+            count("blob.injectedFailure");
+            sendText(exchange, 500, "InternalError");
+            return;
+        }
+        blob.blocks.put(blockId, bytes);
+        sendText(exchange, 201, "");
+    }
+
+    private void putBlockList(HttpExchange exchange, Blob blob) throws IOException {
+        count("blob.putBlockList");
+        String xml = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        long length = 0;
+        int count = 0;
+        Matcher m = LATEST.matcher(xml);
+        while (m.find()) {
+            if (++count > MAX_BLOCKS) {
+                sendText(exchange, 400, "BlockListTooLong");
+                return;
+            }
+            Long size = blob.blocks.get(m.group(1));
+            if (size == null) {
+                sendText(exchange, 400, "InvalidBlockList");
+                return;
+            }
+            length += size;
+        }
+        blob.committedLength = length;
+        sendText(exchange, 201, "");
+    }
+
+    private long drain(InputStream in, boolean paced) throws IOException {
+        return drain(in, paced, null);
+    }
+
+    /**
+     * Reads the body to the end, paced by the bandwidth cap if {@code paced}
+     * and fed to {@code digest} if given; returns its length.
+     */
+    private long drain(InputStream in, boolean paced, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[COPY_CHUNK];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            if (paced) {
+                pace(n);
+            }
+            if (digest != null) {
+                digest.update(buffer, 0, n);
+            }
+            total += n;
+        }
+        if (paced) {
+            count("blob.bytesReceived", total);
+        }
+        return total;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Spaces reads so that all connections together stay under the bandwidth cap. */
+    private void pace(int bytes) throws IOException {
+        if (config.uploadBytesPerSecond <= 0) {
+            return;
+        }
+        long slot;
+        synchronized (pacerLock) {
+            long now = System.nanoTime();
+            slot = Math.max(now, nextFreeNanos);
+            nextFreeNanos = slot + bytes * 1_000_000_000L / config.uploadBytesPerSecond;
+        }
+        sleepNanos(slot - System.nanoTime());
+    }
+
+    // ==========================================
+    // Plumbing
+    // ==========================================
+
+    private void delay() throws IOException {
+        long nanos = config.latency.toNanos();
+        if (!config.latencyJitter.isZero()) {
+            nanos += ThreadLocalRandom.current().nextLong(config.latencyJitter.toNanos() + 1);
+        }
+        sleepNanos(nanos);
+    }
+
+    private static void sleepNanos(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(Duration.ofNanos(nanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    private static boolean roll(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private void count(String name) {
+        count(name, 1);
+    }
+
+    private void count(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    private String blobBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + BLOB_PREFIX;
+    }
+
+    private static JsonObject readJson(InputStream in) throws IOException {
+        String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        return text.isBlank() ? new JsonObject() : JsonParser.parseString(text).getAsJsonObject();
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        response.headers().forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+        if (response.body() == null) {
+            exchange.sendResponseHeaders(response.status(), -1);
+            return;
+        }
+        byte[] bytes = response.body().toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(response.status(), bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String code) throws IOException {
+        if (code.isEmpty()) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().add("x-ms-error-code", code);
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"utf-8\"?><Error><Code>" + code + "</Code></Error>")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.antigravity.intunepackager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the Property table, as the dashboard does when an MSI is picked
+ * and batch mode does for every MSI. Runs against a synthetic database with
+ * {@code properties} rows, or a real installer given with
+ * {@code -p msi=C:\path\to\setup.msi}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MsiPropertyBenchmark {
+
+    @Param({"50", "500", "5000"})
+    public int properties;
+
+    /** A real MSI to read instead of the synthetic one. */
+    @Param({""})
+    public String msi;
+
+    private Path dir;
+    private String path;
+
+    @Setup
+    public void setUp() throws Exception {
+        if (!msi.isBlank()) {
+            path = msi;
+            return;
+        }
+        dir = Payloads.tempDir("bench-msi");
+        path = SyntheticMsi.write(dir.resolve("synthetic.msi"), SyntheticMsi.properties(properties)).toString();
+        int read = MsiInspector.getMsiProperties(path).size();
+        if (read != properties) {
+            throw new IllegalStateException("Synthetic MSI read back " + read + " of " + properties + " properties");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Payloads.delete(dir);
+    }
+
+    @Benchmark
+    public Map<String, String> readPropertyTable() {
+        return MsiInspector.getMsiProperties(path);
+    }
+}
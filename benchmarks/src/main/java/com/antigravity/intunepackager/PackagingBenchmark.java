@@ -0,0 +1,75 @@
+package com.antigravity.intunepackager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a .intunewin: the inner zip, AES-256-CBC encryption, HMAC-SHA256
+ * and the outer zip in one pass over the staged installer. The staged
+ * file's digests are invalidated before every run, so the installer is
+ * hashed as part of the pass just like a first build.
+ *
+ * Scores are milliseconds per package; MB/s is {@code sizeMb * 1000 / score}.
+ * The larger sizes need twice the payload in free disk space; pick sizes
+ * with e.g. {@code -p sizeMb=100}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class PackagingBenchmark {
+
+    @Param({"100", "1024", "2048"})
+    public int sizeMb;
+
+    @Param({"RANDOM", "TEXT"})
+    public String content;
+
+    private final IntunewinPackager packager = new IntunewinPackager();
+    private Path dir;
+    private Path stagingDir;
+    private Path outputDir;
+    private long stamp = 1_000_000_000_000L;
+
+    @Setup(Level.Trial)
+    public void createPayload() throws Exception {
+        dir = Payloads.tempDir("bench-packaging");
+        stagingDir = dir.resolve("staging");
+        outputDir = dir.resolve("output");
+        Payloads.write(stagingDir.resolve("setup.msi"), sizeMb * Payloads.MB,
+                Payloads.Content.valueOf(content));
+    }
+
+    @Setup(Level.Invocation)
+    public void forgetDigests() throws Exception {
+        Files.setLastModifiedTime(stagingDir.resolve("setup.msi"), FileTime.fromMillis(stamp++));
+    }
+
+    @TearDown(Level.Trial)
+    public void deletePayload() throws Exception {
+        Payloads.delete(dir);
+    }
+
+    @Benchmark
+    public Path createPackage() throws Exception {
+        return packager.createPackage(stagingDir, "setup.msi", outputDir);
+    }
+}
@@ -0,0 +1,91 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic installer payloads for the benchmarks. The same seed always
+ * gives the same bytes, so results from different commits are comparable.
+ */
+final class Payloads {
+    static final long MB = 1024L * 1024;
+
+    private static final int CHUNK = 1024 * 1024;
+
+    private Payloads() {
+    }
+
+    /** What the payload looks like to the deflater. */
+    enum Content {
+        /** Incompressible, like the cabinets inside most MSIs. */
+        RANDOM,
+        /** Repetitive text that deflates well, like scripts and manifests. */
+        TEXT
+    }
+
+    static Path write(Path file, long size, Content content) throws IOException {
+        Files.createDirectories(file.getParent());
+        SplittableRandom random = new SplittableRandom(42);
+        byte[] text = textChunk();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+        byte[] chunk = new byte[CHUNK];
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) {
+                int len = (int) Math.min(CHUNK, size - written);
+                if (content == Content.RANDOM) {
+                    random.nextBytes(chunk);
+                    buffer.clear();
+                    buffer.put(chunk, 0, len);
+                } else {
+                    buffer.clear();
+                    buffer.put(text, 0, len);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+
+    static Path tempDir(String name) throws IOException {
+        String base = System.getProperty("bench.dir");
+        return base != null
+                ? Files.createTempDirectory(Files.createDirectories(Path.of(base)), name)
+                : Files.createTempDirectory(name);
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static byte[] textChunk() {
+        StringBuilder sb = new StringBuilder(CHUNK + 128);
+        for (int line = 0; sb.length() < CHUNK; line++) {
+            sb.append("HKLM\\SOFTWARE\\Contoso\\App\\Component").append(line % 977)
+                    .append(" = \"C:\\Program Files\\Contoso\\App\\bin\\module").append(line % 131)
+                    .append(".dll\"\r\n");
+        }
+        byte[] bytes = new byte[CHUNK];
+        System.arraycopy(sb.toString().getBytes(StandardCharsets.US_ASCII), 0, bytes, 0, CHUNK);
+        return bytes;
+    }
+}
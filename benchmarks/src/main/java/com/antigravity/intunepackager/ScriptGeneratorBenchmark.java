@@ -0,0 +1,89 @@
+package com.antigravity.intunepackager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the install/uninstall/detect scripts: a single template merge,
+ * all three written to disk as a package build does, and the cost of a
+ * fresh engine (first build after start-up).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptGeneratorBenchmark {
+
+    @Param({"MSI", "EXE"})
+    public String sourceType;
+
+    private final ScriptGenerator generator = new ScriptGenerator();
+    private PackageDetails details;
+    private Path outputDir;
+
+    @Setup
+    public void setUp() throws Exception {
+        details = new PackageDetails();
+        details.setAppName("Contoso Widget Studio");
+        details.setPublisher("Contoso Ltd.");
+        details.setVersion("24.3.1.1187");
+        details.setSourceType(sourceType);
+        if ("MSI".equals(sourceType)) {
+            details.setSourceFileName("WidgetStudio-x64.msi");
+            details.setInstallCmd("msiexec /i \"WidgetStudio-x64.msi\" /qn /norestart ALLUSERS=1");
+            details.setUninstallCmd("msiexec /x {6F1B2C7A-9E55-4C1D-8A3B-0D2E4F6A8B1C} /qn /norestart");
+            details.setDetectionRule("{6F1B2C7A-9E55-4C1D-8A3B-0D2E4F6A8B1C}");
+        } else {
+            details.setSourceFileName("WidgetStudioSetup.exe");
+            details.setInstallCmd("/S /D=C:\\Program Files\\Contoso\\Widget Studio");
+            details.setUninstallCmd("/S");
+            details.setDetectionRule("C:\\Program Files\\Contoso\\Widget Studio\\WidgetStudio.exe");
+        }
+        details.setPreInstallScript("Get-Process WidgetStudio -ErrorAction SilentlyContinue | Stop-Process -Force");
+        outputDir = Payloads.tempDir("bench-scripts");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Payloads.delete(outputDir);
+    }
+
+    @Benchmark
+    public String renderInstallScript() {
+        StringWriter writer = new StringWriter(4096);
+        generator.render("install.ps1", details, writer);
+        return writer.toString();
+    }
+
+    @Benchmark
+    public void generateAll() throws Exception {
+        generator.generateAll(outputDir.toFile(), details);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 20)
+    public File coldGenerator() throws Exception {
+        new ScriptGenerator().generateAll(outputDir.toFile(), details);
+        return outputDir.toFile();
+    }
+}
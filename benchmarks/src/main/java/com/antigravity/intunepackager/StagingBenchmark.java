@@ -0,0 +1,91 @@
+package com.antigravity.intunepackager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting an installer into the staging folder. {@code stage} is what a
+ * build does (a hard link on the same volume); the copy variants are its
+ * fallbacks when linking is impossible: transferTo when the installer's
+ * digests are already known, a hashing copy when they are not, and plain
+ * {@link Files#copy} as the baseline.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StagingBenchmark {
+
+    @Param({"100", "1024"})
+    public int sizeMb;
+
+    private final InstallerStager stager = new InstallerStager();
+    private Path dir;
+    private Path source;
+    private Path target;
+    private FileDigests digests;
+    private long stamp = 1_000_000_000_000L;
+
+    @Setup(Level.Trial)
+    public void createPayload() throws Exception {
+        dir = Payloads.tempDir("bench-staging");
+        source = Payloads.write(dir.resolve("installer.msi"), sizeMb * Payloads.MB, Payloads.Content.RANDOM);
+        target = dir.resolve("staging").resolve("installer.msi");
+        digests = FileDigests.of(source);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearTarget() throws Exception {
+        Files.deleteIfExists(target);
+        Files.createDirectories(target.getParent());
+    }
+
+    @TearDown(Level.Trial)
+    public void deletePayload() throws Exception {
+        Payloads.delete(dir);
+    }
+
+    @Benchmark
+    public InstallerStager.Method stage() throws Exception {
+        return stager.stage(source, target, null);
+    }
+
+    @Benchmark
+    public Path copyKnownDigests() throws Exception {
+        FileDigests.remember(source, digests);
+        InstallerStager.copy(source, target, null);
+        return target;
+    }
+
+    @Benchmark
+    public Path copyHashing() throws Exception {
+        // A new mtime makes the remembered digests stale, so the copy hashes
+        Files.setLastModifiedTime(source, FileTime.fromMillis(stamp++));
+        InstallerStager.copy(source, target, null);
+        return target;
+    }
+
+    @Benchmark
+    public Path filesCopy() throws Exception {
+        return Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,203 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a minimal MSI database (an OLE compound file holding only the
+ * string pool and the Property table) so {@link MsiDatabaseReader} can be
+ * benchmarked without shipping real installers.
+ *
+ * Uses 512-byte sectors and a mini stream cutoff of 0, so every stream is
+ * read through the regular FAT. Large enough for a few thousand properties
+ * (the FAT must fit in the header's 109 entries).
+ */
+final class SyntheticMsi {
+    private static final int SECTOR = 512;
+    private static final int DIR_ENTRY_SIZE = 128;
+    private static final int FREE = 0xFFFFFFFF;
+    private static final int END_OF_CHAIN = 0xFFFFFFFE;
+    private static final int FAT_SECTOR = 0xFFFFFFFD;
+
+    private SyntheticMsi() {
+    }
+
+    /** Properties of a typical MSI followed by filler up to {@code count}. */
+    static Map<String, String> properties(int count) {
+        Map<String, String> props = new LinkedHashMap<>();
+        props.put("ProductCode", "{6F1B2C7A-9E55-4C1D-8A3B-0D2E4F6A8B1C}");
+        props.put("ProductName", "Contoso Widget Studio");
+        props.put("ProductVersion", "24.3.1.1187");
+        props.put("Manufacturer", "Contoso Ltd.");
+        props.put("UpgradeCode", "{0A9B8C7D-6E5F-4A3B-2C1D-0E9F8A7B6C5D}");
+        props.put("ALLUSERS", "1");
+        for (int i = props.size(); i < count; i++) {
+            props.put("CONTOSO_PROPERTY_" + i, "Value of property " + i + " with some typical length");
+        }
+        return props;
+    }
+
+    static Path write(Path file, Map<String, String> properties) throws IOException {
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        ByteBuffer names = le(properties.size() * 3);
+        ByteBuffer values = le(properties.size() * 3);
+        boolean longRefs = properties.size() * 2 >= 0xFFFF;
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            putRef(names, intern(e.getKey(), strings, ids), longRefs);
+            putRef(values, intern(e.getValue(), strings, ids), longRefs);
+        }
+        ByteBuffer table = le(names.position() + values.position());
+        table.put(names.flip()).put(values.flip());
+
+        ByteBuffer pool = le(4 * (strings.size() + 1));
+        pool.putShort((short) 65001).putShort((short) (longRefs ? 0x8000 : 0));
+        ByteBuffer data = le(strings.stream().mapToInt(s -> s.getBytes(StandardCharsets.UTF_8).length).sum());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            pool.putShort((short) bytes.length).putShort((short) 1);
+            data.put(bytes);
+        }
+
+        List<byte[]> streams = List.of(pool.array(), data.array(), table.array());
+        List<String> streamNames = List.of("_StringPool", "_StringData", "Property");
+
+        // Sector layout: FAT, directory, then each stream
+        int dataSectors = 1;
+        for (byte[] stream : streams) {
+            dataSectors += sectors(stream.length);
+        }
+        int fatSectors = 1;
+        while (fatSectors * (SECTOR / 4) < fatSectors + dataSectors) {
+            fatSectors++;
+        }
+        if (fatSectors > 109) {
+            throw new IllegalArgumentException("Too many properties for a synthetic MSI");
+        }
+        int total = fatSectors + dataSectors;
+        int[] fat = new int[fatSectors * (SECTOR / 4)];
+        Arrays.fill(fat, FREE);
+        for (int i = 0; i < fatSectors; i++) {
+            fat[i] = FAT_SECTOR;
+        }
+        int dirSector = fatSectors;
+        fat[dirSector] = END_OF_CHAIN;
+        int[] starts = new int[streams.size()];
+        int next = dirSector + 1;
+        for (int s = 0; s < streams.size(); s++) {
+            int n = sectors(streams.get(s).length);
+            starts[s] = n > 0 ? next : END_OF_CHAIN;
+            for (int i = 0; i < n; i++) {
+                fat[next + i] = i == n - 1 ? END_OF_CHAIN : next + i + 1;
+            }
+            next += n;
+        }
+
+        ByteBuffer out = le(SECTOR * (1 + total));
+        out.putLong(0, 0xE11AB1A1E011CFD0L);
+        out.putShort(0x18, (short) 0x3E);
+        out.putShort(0x1A, (short) 3);
+        out.putShort(0x1C, (short) 0xFFFE);
+        out.putShort(0x1E, (short) 9);
+        out.putShort(0x20, (short) 6);
+        out.putInt(0x2C, fatSectors);
+        out.putInt(0x30, dirSector);
+        out.putInt(0x38, 0);
+        out.putInt(0x3C, END_OF_CHAIN);
+        out.putInt(0x44, END_OF_CHAIN);
+        for (int i = 0; i < 109; i++) {
+            out.putInt(0x4C + i * 4, i < fatSectors ? i : FREE);
+        }
+        for (int i = 0; i < fat.length; i++) {
+            out.putInt(SECTOR + i * 4, fat[i]);
+        }
+
+        // Root entry, then the streams chained through their right siblings
+        int dirBase = SECTOR * (1 + dirSector);
+        directoryEntry(out, dirBase, new char[] {'R', 'o', 'o', 't', ' ', 'E', 'n', 't', 'r', 'y'}, 5, FREE, 1,
+                END_OF_CHAIN, 0);
+        for (int s = 0; s < streams.size(); s++) {
+            int right = s + 1 < streams.size() ? s + 2 : FREE;
+            directoryEntry(out, dirBase + (s + 1) * DIR_ENTRY_SIZE, encodeTableName(streamNames.get(s)), 2, right,
+                    FREE, starts[s], streams.get(s).length);
+            out.put(SECTOR * (1 + starts[s]), streams.get(s));
+        }
+
+        Files.createDirectories(file.getParent());
+        Files.write(file, out.array());
+        return file;
+    }
+
+    private static int intern(String s, List<String> strings, Map<String, Integer> ids) {
+        return ids.computeIfAbsent(s, k -> {
+            strings.add(k);
+            return strings.size();
+        });
+    }
+
+    private static void putRef(ByteBuffer buf, int id, boolean longRefs) {
+        buf.putShort((short) id);
+        if (longRefs) {
+            buf.put((byte) (id >> 16));
+        }
+    }
+
+    private static void directoryEntry(ByteBuffer out, int base, char[] name, int type, int right, int child,
+            int start, long size) {
+        for (int i = 0; i < name.length; i++) {
+            out.putChar(base + i * 2, name[i]);
+        }
+        out.putShort(base + 0x40, (short) ((name.length + 1) * 2));
+        out.put(base + 0x42, (byte) type);
+        out.put(base + 0x43, (byte) 1);
+        out.putInt(base + 0x44, FREE);
+        out.putInt(base + 0x48, right);
+        out.putInt(base + 0x4C, child);
+        out.putInt(base + 0x74, start);
+        out.putInt(base + 0x78, (int) size);
+    }
+
+    /** Inverse of {@link MsiDatabaseReader#decodeStreamName} for a table stream. */
+    private static char[] encodeTableName(String name) {
+        StringBuilder sb = new StringBuilder().append((char) 0x4840);
+        for (int i = 0; i < name.length(); i += 2) {
+            int a = base64(name.charAt(i));
+            if (i + 1 < name.length()) {
+                sb.append((char) (0x3800 + a + (base64(name.charAt(i + 1)) << 6)));
+            } else {
+                sb.append((char) (0x4800 + a));
+            }
+        }
+        return sb.toString().toCharArray();
+    }
+
+    private static int base64(char ch) {
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        }
+        if (ch >= 'A' && ch <= 'Z') {
+            return ch - 'A' + 10;
+        }
+        if (ch >= 'a' && ch <= 'z') {
+            return ch - 'a' + 36;
+        }
+        return ch == '.' ? 62 : 63;
+    }
+
+    private static int sectors(int length) {
+        return (length + SECTOR - 1) / SECTOR;
+    }
+
+    private static ByteBuffer le(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,199 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes N concurrent uploads of a synthetic package through a
+ * {@link FakeIntuneServer} and reports throughput and tail latency as JSON.
+ *
+ * java -cp benchmarks/target/benchmarks.jar com.antigravity.intunepackager.UploadLoadHarness
+ *      [--uploads 8] [--size-mb 64] [--blocks-in-flight N] [--block-size-mb N] [--latency-ms 20] [--jitter-ms 20]
+ *      [--bandwidth-mbps 0] [--block-failure-rate 0] [--throttle-rate 0]
+ *      [--storage-uri-delay-ms 500] [--commit-delay-ms 1000] [--corrupt-at-mb N] [--output load-report.json]
+ *
+ * Every upload goes through the real {@link IntuneUploadService} (metadata,
+ * content version, file, block upload, commit and link) with its own
+ * journal; they share one Graph batcher, as uploads to the same tenant do.
+ * {@code --blocks-in-flight} caps the {@link UploadTuner}; with
+ * {@code --block-size-mb} the tuner is fixed at that block size and cap
+ * instead, to compare against adaptive tuning. {@code --corrupt-at-mb}
+ * flips one byte of the encrypted content at that offset, to see how soon
+ * the integrity check aborts the uploads.
+ */
+public class UploadLoadHarness {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                usage("Unexpected argument: " + args[i]);
+                return;
+            }
+        }
+
+        int uploads = Integer.parseInt(options.getOrDefault("--uploads", "8"));
+        int sizeMb = Integer.parseInt(options.getOrDefault("--size-mb", "64"));
+        int blocksInFlight = Integer.parseInt(options.getOrDefault("--blocks-in-flight", "0"));
+        int blockSizeMb = Integer.parseInt(options.getOrDefault("--block-size-mb", "0"));
+        long corruptAt = (long) (Double.parseDouble(options.getOrDefault("--corrupt-at-mb", "-1")) * Payloads.MB);
+        FakeIntuneServer.Config config = new FakeIntuneServer.Config()
+                .latency(Duration.ofMillis(Long.parseLong(options.getOrDefault("--latency-ms", "20"))),
+                        Duration.ofMillis(Long.parseLong(options.getOrDefault("--jitter-ms", "20"))))
+                .uploadBandwidth((long) (Double.parseDouble(options.getOrDefault("--bandwidth-mbps", "0"))
+                        * 1_000_000 / 8))
+                .blockFailureRate(Double.parseDouble(options.getOrDefault("--block-failure-rate", "0")))
+                .throttleRate(Double.parseDouble(options.getOrDefault("--throttle-rate", "0")))
+                .storageUriDelay(Duration.ofMillis(Long.parseLong(options.getOrDefault("--storage-uri-delay-ms",
+                        "500"))))
+                .commitDelay(Duration.ofMillis(Long.parseLong(options.getOrDefault("--commit-delay-ms", "1000"))));
+
+        Path dir = Payloads.tempDir("upload-load");
+        try (FakeIntuneServer server = FakeIntuneServer.start(config)) {
+            JsonObject report = run(server, dir, uploads, sizeMb, blocksInFlight, blockSizeMb, corruptAt);
+            report.add("options", GSON.toJsonTree(options));
+            String json = GSON.toJson(report);
+            System.out.println(json);
+            if (options.containsKey("--output")) {
+                Files.writeString(Path.of(options.get("--output")), json, StandardCharsets.UTF_8);
+            }
+        } finally {
+            Payloads.delete(dir);
+        }
+        System.exit(0);
+    }
+
+    private static JsonObject run(FakeIntuneServer server, Path dir, int uploads, int sizeMb, int blocksInFlight,
+            int blockSizeMb, long corruptAt) throws Exception {
+        // One package, hard-linked into a folder per upload so each gets its own journal and report
+        Path staging = dir.resolve("staging");
+        Payloads.write(staging.resolve("setup.msi"), sizeMb * Payloads.MB, Payloads.Content.RANDOM);
+        Path built = new IntunewinPackager().createPackage(staging, "setup.msi", dir.resolve("built"));
+        long encryptedSize;
+        try (IntunewinArchive archive = IntunewinArchive.open(built)) {
+            encryptedSize = archive.getContentLength();
+            if (corruptAt >= 0) {
+                corrupt(built, archive.getContentOffset() + Math.min(corruptAt, encryptedSize - 1));
+            }
+        }
+        List<Path> packages = new ArrayList<>();
+        for (int i = 0; i < uploads; i++) {
+            Path target = Files.createDirectories(dir.resolve("upload-" + i)).resolve(built.getFileName());
+            try {
+                Files.createLink(target, built);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(built, target);
+            }
+            packages.add(target);
+        }
+
+        GraphServiceClient graphClient = server.newGraphClient();
+        GraphBatcher batcher = server.newGraphBatcher(HttpClient.newHttpClient(), new ThrottleGovernor());
+        Telemetry.Histogram uploadMillis = new Telemetry.Histogram();
+        AtomicInteger failed = new AtomicInteger();
+        List<String> errors = new ArrayList<>();
+
+        long start = System.nanoTime();
+        try (ProgressBus bus = new ProgressBus();
+                ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < uploads; i++) {
+                int index = i;
+                running.add(executor.submit(() -> {
+                    IntuneUploadService service = new IntuneUploadService(graphClient, batcher, bus, "load-" + index);
+                    if (blocksInFlight > 0) {
+                        service.setUploadConcurrency(blocksInFlight);
+                    }
+                    if (blockSizeMb > 0) {
+                        service.setFixedBlockSize((int) (blockSizeMb * Payloads.MB));
+                    }
+                    long t0 = System.nanoTime();
+                    try {
+                        service.uploadIntunewin(packages.get(index).toFile(), details(index));
+                        uploadMillis.record((System.nanoTime() - t0) / 1_000_000);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        synchronized (errors) {
+                            errors.add("upload-" + index + ": " + e.getMessage());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> upload : running) {
+                upload.get();
+            }
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        JsonObject report = new JsonObject();
+        report.addProperty("uploads", uploads);
+        report.addProperty("failed", failed.get());
+        report.addProperty("encryptedBytesPerUpload", encryptedSize);
+        report.addProperty("wallMillis", wallNanos / 1_000_000);
+        long succeededBytes = encryptedSize * (uploads - failed.get());
+        report.addProperty("megabytesPerSecond",
+                Math.round(Telemetry.megabytesPerSecond(succeededBytes, wallNanos) * 100) / 100.0);
+        report.add("uploadMillis", uploadMillis.toJson());
+        report.add("blockMicros", Telemetry.histogram("upload.block.micros").toJson());
+        report.add("graphRequestMicros", Telemetry.histogram("http.graph.micros").toJson());
+        report.add("telemetry", Telemetry.snapshot());
+        report.add("server", server.getStats());
+        report.add("errors", GSON.toJsonTree(errors));
+        return report;
+    }
+
+    private static void corrupt(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            one.put(0, (byte) (one.get(0) ^ 0xFF)).rewind();
+            channel.write(one, position);
+        }
+    }
+
+    private static PackageDetails details(int index) {
+        PackageDetails details = new PackageDetails();
+        details.setAppName("Load Test " + index);
+        details.setPublisher("Contoso Ltd.");
+        details.setVersion("1.0." + index);
+        details.setSourceType("MSI");
+        details.setSourceFileName("setup.msi");
+        details.setInstallCmd("msiexec /i \"setup.msi\" /qn");
+        details.setUninstallCmd("msiexec /x \"setup.msi\" /qn");
+        return details;
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("Usage: UploadLoadHarness [--uploads N] [--size-mb N] [--blocks-in-flight N] [--block-size-mb N]");
+        System.err.println("       [--latency-ms N] [--jitter-ms N] [--bandwidth-mbps N] [--block-failure-rate F]");
+        System.err.println("       [--throttle-rate F] [--storage-uri-delay-ms N] [--commit-delay-ms N]");
+        System.err.println("       [--corrupt-at-mb N] [--output file]");
+        System.exit(64);
+    }
+}
@@ -1,7 +1,13 @@
 package com.antigravity.intunepackager;
 
+import java.util.Arrays;
+
 public class AppLauncher {
     public static void main(String[] args) {
+        if (Arrays.asList(args).contains("--batch")) {
+            BatchLauncher.main(args);
+            return;
+        }
         MainApp.main(args);
     }
 }
@@ -0,0 +1,394 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Headless entry point that packages (and optionally uploads) many apps at
+ * once.
+ *
+ * <pre>
+ * java -jar intunepackager.jar --batch
+ *      (--manifest apps.csv|apps.json | --dir C:\Installers) --output C:\Packages
+ *      [--upload] [--inspect-threads N] [--package-threads N] [--upload-threads N]
+ * </pre>
+ *
+ * Every app runs the same stages as the wizard (inspect, stage, scripts,
+ * package, upload) on its own virtual thread; each stage has its own
+ * concurrency limit so, for example, CPU-heavy packaging does not starve the
+ * network-bound uploads. A per-app timing table is printed at the end.
+ *
+ * Manifest columns / JSON fields use the {@link PackageDetails} property
+ * names; only {@code sourcePath} is required, anything else left empty is
+ * filled in from the installer.
+ */
+public class BatchLauncher {
+
+    private static final String[] STAGES = { "inspect", "stage", "scripts", "package", "upload" };
+
+    private final File outputRoot;
+    private final boolean upload;
+    private final Map<String, Semaphore> stageLimits = new LinkedHashMap<>();
+    private final ProgressBus progressBus = new ProgressBus();
+    private GraphAuthService authService;
+
+    /** State and timings of one app in the batch. */
+    static class AppJob {
+        final PackageDetails requested;
+        final Map<String, Long> stageMillis = new LinkedHashMap<>();
+        PackageDetails details;
+        File outputDir;
+        String error;
+        long totalMillis;
+
+        AppJob(PackageDetails requested) {
+            this.requested = requested;
+        }
+
+        /**
+         * Name of the job's output folder, unique within the batch even when
+         * several installers share a file name (e.g. setup.exe); used as its
+         * progress source, report name and console prefix.
+         */
+        String label() {
+            return outputDir.getName();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    BatchLauncher(File outputRoot, boolean upload, int inspectThreads, int packageThreads, int uploadThreads) {
+        this.outputRoot = outputRoot;
+        this.upload = upload;
+        stageLimits.put("inspect", new Semaphore(inspectThreads));
+        stageLimits.put("stage", new Semaphore(packageThreads));
+        stageLimits.put("scripts", new Semaphore(inspectThreads));
+        stageLimits.put("package", new Semaphore(packageThreads));
+        stageLimits.put("upload", new Semaphore(uploadThreads));
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        Set<String> flags = new HashSet<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--upload") || arg.equals("--batch")) {
+                flags.add(arg);
+            } else if (arg.startsWith("--") && i + 1 < args.length) {
+                options.put(arg, args[++i]);
+            } else {
+                usage("Unexpected argument: " + arg);
+                return;
+            }
+        }
+
+        if (!options.containsKey("--output") || (options.containsKey("--manifest") == options.containsKey("--dir"))) {
+            usage(null);
+            return;
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        try {
+            BatchLauncher launcher = new BatchLauncher(
+                    new File(options.get("--output")),
+                    flags.contains("--upload"),
+                    intOption(options, "--inspect-threads", cores),
+                    intOption(options, "--package-threads", Math.max(1, cores / 2)),
+                    intOption(options, "--upload-threads", 4));
+
+            List<PackageDetails> apps = options.containsKey("--manifest")
+                    ? readManifest(Path.of(options.get("--manifest")))
+                    : scanDirectory(Path.of(options.get("--dir")));
+            if (apps.isEmpty()) {
+                System.err.println("No installers found.");
+                System.exit(1);
+            }
+
+            List<AppJob> jobs = launcher.run(apps);
+            printSummary(jobs);
+            System.exit(jobs.stream().anyMatch(j -> j.error != null) ? 1 : 0);
+        } catch (Exception e) {
+            System.err.println("Batch failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    List<AppJob> run(List<PackageDetails> apps) throws Exception {
+        if (upload) {
+            SettingsManager settings = new SettingsManager();
+            if (!settings.isSetupComplete()) {
+                throw new Exception("Azure AD credentials not configured. Run the app once to complete setup.");
+            }
+            authService = GraphAuthService.forTenant(settings.getClientId(), settings.getTenantId());
+            authService.getAccessToken(); // authenticate once, up front
+        }
+
+        List<AppJob> jobs = new ArrayList<>();
+        Set<String> usedNames = new HashSet<>();
+        for (PackageDetails app : apps) {
+            AppJob job = new AppJob(app);
+            job.outputDir = new File(outputRoot, uniqueFolderName(new File(app.getSourcePath()).getName(), usedNames));
+            jobs.add(job);
+        }
+
+        // Upload status lines of all apps, printed by one subscriber
+        ProgressBus.Subscription console = progressBus.subscribe(null, event -> {
+            if (event.kind() == ProgressBus.Kind.STATUS) {
+                System.out.println("[" + event.source() + "] " + event.message());
+            }
+        });
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (AppJob job : jobs) {
+                executor.submit(() -> runJob(job));
+            }
+        }
+        progressBus.close();
+        console.getCompletion().join();
+        return jobs;
+    }
+
+    private void runJob(AppJob job) {
+        long start = System.nanoTime();
+        PackageBuilder builder = new PackageBuilder();
+        JobReport report = new JobReport("package", job.label());
+        builder.setJobReport(report);
+        File[] stagingDir = new File[1];
+        File[] intunewin = new File[1];
+        try {
+            runStage(job, "inspect", () -> job.details = merge(
+                    PackageBuilder.inspect(new File(job.requested.getSourcePath()), report), job.requested));
+            runStage(job, "stage", () -> stagingDir[0] = builder.stageInstaller(job.details, job.outputDir));
+            runStage(job, "scripts", () -> builder.generateScripts(job.details, stagingDir[0]));
+            runStage(job, "package", () -> intunewin[0] = builder.packageApp(job.details, stagingDir[0], job.outputDir));
+            if (upload) {
+                runStage(job, "upload", () -> {
+                    IntuneUploadService service = new IntuneUploadService(authService.getGraphClient(), authService,
+                            progressBus, job.label());
+                    service.uploadIntunewin(intunewin[0], job.details);
+                });
+            }
+            log(job, "done");
+        } catch (Exception | Error e) {
+            // Errors too (e.g. a missing class): otherwise the executor swallows them and the app reports OK
+            job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            log(job, "FAILED: " + job.error);
+        } finally {
+            job.totalMillis = (System.nanoTime() - start) / 1_000_000;
+        }
+    }
+
+    private void runStage(AppJob job, String name, Stage stage) throws Exception {
+        Semaphore limit = stageLimits.get(name);
+        limit.acquire();
+        long start = System.nanoTime();
+        try {
+            stage.run();
+        } finally {
+            limit.release();
+            job.stageMillis.put(name, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private static void log(AppJob job, String message) {
+        System.out.println("[" + job.label() + "] " + message);
+    }
+
+    /** Manifest values win; anything left empty keeps the inspected default. */
+    static PackageDetails merge(PackageDetails defaults, PackageDetails requested) {
+        if (notEmpty(requested.getAppName())) defaults.setAppName(requested.getAppName());
+        if (notEmpty(requested.getPublisher())) defaults.setPublisher(requested.getPublisher());
+        if (notEmpty(requested.getVersion())) defaults.setVersion(requested.getVersion());
+        if (notEmpty(requested.getDescription())) defaults.setDescription(requested.getDescription());
+        if (notEmpty(requested.getInstallCmd())) defaults.setInstallCmd(requested.getInstallCmd());
+        if (notEmpty(requested.getUninstallCmd())) defaults.setUninstallCmd(requested.getUninstallCmd());
+        if (notEmpty(requested.getDetectionRule())) defaults.setDetectionRule(requested.getDetectionRule());
+        if (notEmpty(requested.getPreInstallScript())) defaults.setPreInstallScript(requested.getPreInstallScript());
+        if (defaults.getPublisher() == null) defaults.setPublisher("Unknown Publisher");
+        if (defaults.getVersion() == null) defaults.setVersion("1.0.0");
+        if (defaults.getDescription() == null) defaults.setDescription("");
+        return defaults;
+    }
+
+    private static boolean notEmpty(String value) {
+        return value != null && !value.isBlank();
+    }
+
+    // ==========================================
+    // Input
+    // ==========================================
+
+    static List<PackageDetails> scanDirectory(Path dir) throws IOException {
+        List<PackageDetails> apps = new ArrayList<>();
+        try (var files = Files.list(dir)) {
+            files.filter(Files::isRegularFile)
+                    .filter(p -> {
+                        String n = p.getFileName().toString().toLowerCase(Locale.ROOT);
+                        return n.endsWith(".msi") || n.endsWith(".exe");
+                    })
+                    .sorted()
+                    .forEach(p -> {
+                        PackageDetails d = new PackageDetails();
+                        d.setSourcePath(p.toAbsolutePath().toString());
+                        apps.add(d);
+                    });
+        }
+        return apps;
+    }
+
+    static List<PackageDetails> readManifest(Path manifest) throws Exception {
+        String text = Files.readString(manifest, StandardCharsets.UTF_8);
+        List<PackageDetails> apps = new ArrayList<>();
+        if (manifest.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json")) {
+            apps.addAll(Arrays.asList(new Gson().fromJson(text, PackageDetails[].class)));
+        } else {
+            List<List<String>> rows = parseCsv(text);
+            if (rows.isEmpty()) {
+                return apps;
+            }
+            List<String> header = rows.get(0);
+            for (List<String> row : rows.subList(1, rows.size())) {
+                if (row.stream().allMatch(String::isBlank)) {
+                    continue;
+                }
+                Map<String, String> values = new LinkedHashMap<>();
+                for (int i = 0; i < header.size() && i < row.size(); i++) {
+                    values.put(header.get(i).trim(), row.get(i));
+                }
+                PackageDetails d = new PackageDetails();
+                d.setSourcePath(values.get("sourcePath"));
+                d.setAppName(values.get("appName"));
+                d.setPublisher(values.get("publisher"));
+                d.setVersion(values.get("version"));
+                d.setDescription(values.get("description"));
+                d.setInstallCmd(values.get("installCmd"));
+                d.setUninstallCmd(values.get("uninstallCmd"));
+                d.setDetectionRule(values.get("detectionRule"));
+                d.setPreInstallScript(values.get("preInstallScript"));
+                apps.add(d);
+            }
+        }
+
+        Path base = manifest.toAbsolutePath().getParent();
+        for (PackageDetails d : apps) {
+            if (!notEmpty(d.getSourcePath())) {
+                throw new Exception("Manifest entry without sourcePath in " + manifest);
+            }
+            d.setSourcePath(base.resolve(d.getSourcePath()).toString());
+        }
+        return apps;
+    }
+
+    /** RFC 4180 style: quoted fields may contain commas, newlines and doubled quotes. */
+    static List<List<String>> parseCsv(String text) {
+        List<List<String>> rows = new ArrayList<>();
+        List<String> row = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                row.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                row.add(field.toString());
+                field.setLength(0);
+                rows.add(row);
+                row = new ArrayList<>();
+            } else {
+                field.append(c);
+            }
+        }
+        if (field.length() > 0 || !row.isEmpty()) {
+            row.add(field.toString());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String uniqueFolderName(String fileName, Set<String> used) {
+        String base = fileName.replaceAll("\\.(?i)(msi|exe)$", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        String name = base;
+        for (int i = 2; !used.add(name.toLowerCase(Locale.ROOT)); i++) {
+            name = base + "_" + i;
+        }
+        return name;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int fallback) {
+        String value = options.get(name);
+        return value == null ? fallback : Math.max(1, Integer.parseInt(value));
+    }
+
+    // ==========================================
+    // Output
+    // ==========================================
+
+    static void printSummary(List<AppJob> jobs) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%n%-40s", "App"));
+        for (String stage : STAGES) {
+            sb.append(String.format("%10s", stage));
+        }
+        sb.append(String.format("%10s  %s%n", "total", "status"));
+        for (AppJob job : jobs) {
+            String name = job.details != null && job.details.getAppName() != null
+                    ? job.details.getAppName()
+                    : job.label();
+            sb.append(String.format("%-40.40s", name));
+            for (String stage : STAGES) {
+                Long ms = job.stageMillis.get(stage);
+                sb.append(String.format("%10s", ms == null ? "-" : formatMillis(ms)));
+            }
+            sb.append(String.format("%10s  %s%n", formatMillis(job.totalMillis),
+                    job.error == null ? "OK" : "FAILED: " + job.error));
+        }
+        System.out.print(sb);
+    }
+
+    private static String formatMillis(long ms) {
+        return ms < 1000 ? ms + "ms" : String.format("%.1fs", ms / 1000.0);
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("Usage: BatchLauncher (--manifest <apps.csv|apps.json> | --dir <folder>) --output <folder>");
+        System.err.println("       [--upload] [--inspect-threads N] [--package-threads N] [--upload-threads N]");
+        System.exit(64);
+    }
+}
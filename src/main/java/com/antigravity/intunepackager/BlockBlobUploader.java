@@ -0,0 +1,482 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Uploads a byte range of a local file to an Azure Storage SAS URI using the
+ * Put Block / Put Block List protocol. Blocks are sent from virtual threads,
+ * paced by the shared {@link ThrottleGovernor}; their size and how many are
+ * outstanding at once come from an {@link UploadTuner}, which may change both
+ * while the upload runs. Blocks are therefore cut as they are sent and
+ * identified by their offset and length as well as their index. Each block
+ * is read into a pooled direct buffer ({@link BlockBufferPool}) and sent
+ * straight from it, without a heap copy per block, with a Content-MD5 so
+ * Azure rejects a block that was damaged on the way.
+ */
+public class BlockBlobUploader {
+    private static final Logger LOGGER = Logger.getLogger(BlockBlobUploader.class.getName());
+
+    /** Azure's limit on the blocks of one blob. */
+    public static final int MAX_BLOCKS = 50_000;
+    /**
+     * Storage service version requested with every call. Without it Azure
+     * falls back to the SAS token's version, which for older tokens limits
+     * blocks to 100 MiB; from this version on it accepts blocks up to 4000 MiB.
+     */
+    static final String STORAGE_API_VERSION = "2019-12-12";
+    /** Largest block this uploader sends (one buffer), well within what {@link #STORAGE_API_VERSION} allows. */
+    static final int MAX_PUT_BLOCK_SIZE = Integer.MAX_VALUE - 8;
+    /** Digits in block IDs; enough for any block index, so IDs never change width. */
+    static final int BLOCK_ID_DIGITS = 10;
+    private static final int MAX_ATTEMPTS = 5;
+    /** Size of the slices a block buffer is handed to the HTTP client in. */
+    private static final int BODY_SLICE_SIZE = 64 * 1024;
+
+    /** One block of the blob: its index, the byte range it covers and its block ID. */
+    public record Block(int index, long offset, int length, String id) {
+    }
+
+    /**
+     * Called once per acknowledged block, from the uploading thread. Throwing
+     * aborts the upload (used when the block cannot be journaled).
+     */
+    @FunctionalInterface
+    public interface BlockProgressListener {
+        void blockUploaded(Block block, long bytesUploaded, long totalBytes) throws IOException;
+    }
+
+    private final HttpClient httpClient;
+    private final UploadTuner tuner;
+    private final ThrottleGovernor governor = ThrottleGovernor.getShared();
+    private final BlockBufferPool buffers = BlockBufferPool.getShared();
+    private JobReport report;
+    private CompletableFuture<?> verification;
+
+    public BlockBlobUploader(HttpClient httpClient, UploadTuner tuner) {
+        this.httpClient = httpClient;
+        this.tuner = tuner;
+    }
+
+    public UploadTuner getTuner() {
+        return tuner;
+    }
+
+    /** Records each block's timing, attempts and status into this report. */
+    public void setJobReport(JobReport report) {
+        this.report = report;
+    }
+
+    /**
+     * A check of the content running alongside the upload (see
+     * {@link ContentVerifier}). If it fails, no further blocks are sent;
+     * the block list is only committed once it has passed.
+     */
+    public void setVerification(CompletableFuture<?> verification) {
+        this.verification = verification;
+    }
+
+    /**
+     * Uploads {@code length} bytes of {@code file} starting at {@code offset}
+     * and commits them as the blob behind {@code sasUri}.
+     */
+    public void upload(String sasUri, Path file, long offset, long length, BlockProgressListener listener)
+            throws IOException, InterruptedException {
+        upload(sasUri, file, offset, length, List.of(), listener);
+    }
+
+    /**
+     * Same as {@link #upload(String, Path, long, long, BlockProgressListener)}
+     * but skips blocks Azure has already acknowledged in an earlier attempt,
+     * whatever size they were cut at. Only the gaps between them are sent;
+     * their IDs are still included in the final block list. The block count
+     * is checked against {@link #MAX_BLOCKS} before anything is sent.
+     */
+    public void upload(String sasUri, Path file, long offset, long length, List<Block> alreadyUploaded,
+            BlockProgressListener listener) throws IOException, InterruptedException {
+        List<Block> blocks = new ArrayList<>();
+        long resumedBytes = 0;
+        long covered = 0;
+        int nextIndex = 0;
+        for (Block block : alreadyUploaded.stream().sorted(Comparator.comparingLong(Block::offset)).toList()) {
+            // Anything overlapping an earlier block or past the end is simply sent again
+            if (block.offset() >= covered && block.offset() + block.length() <= length) {
+                blocks.add(block);
+                resumedBytes += block.length();
+                covered = block.offset() + block.length();
+            }
+            nextIndex = Math.max(nextIndex, block.index() + 1);
+        }
+        List<long[]> gaps = new ArrayList<>();
+        long position = 0;
+        for (Block block : blocks) {
+            if (block.offset() > position) {
+                gaps.add(new long[] {position, block.offset()});
+            }
+            position = block.offset() + block.length();
+        }
+        if (position < length) {
+            gaps.add(new long[] {position, length});
+        }
+        checkBlockCount(blocks.size(), gaps);
+
+        InFlightLimit inFlight = new InFlightLimit();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong uploaded = new AtomicLong(resumedBytes);
+        long assigned = resumedBytes;
+        if (verification != null) {
+            verification.whenComplete((ignored, e) -> {
+                if (e != null) {
+                    failure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+                    inFlight.abort();
+                }
+            });
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long[] gap : gaps) {
+                long next = gap[0];
+                while (next < gap[1] && failure.get() == null) {
+                    inFlight.acquire(tuner::getInFlight);
+                    if (failure.get() != null) {
+                        inFlight.release();
+                        break;
+                    }
+                    int size = (int) Math.min(gap[1] - next,
+                            blockSizeFor(length - assigned, MAX_BLOCKS - blocks.size()));
+                    Block block = new Block(nextIndex, next, size, blockId(nextIndex));
+                    nextIndex++;
+                    next += size;
+                    assigned += size;
+                    blocks.add(block);
+                    int generation = tuner.getGeneration();
+                    executor.submit(() -> {
+                        long start = System.nanoTime();
+                        int attempts = MAX_ATTEMPTS;
+                        boolean ok = false;
+                        ByteBuffer buffer = null;
+                        try {
+                            buffer = buffers.acquire(block.length());
+                            readBlock(channel, offset + block.offset(), buffer);
+                            attempts = putBlock(sasUri, block.id(), buffer,
+                                    Telemetry.startBlock(report, block.index(), block.length()));
+                            ok = true;
+                            long done = uploaded.addAndGet(block.length());
+                            if (listener != null) {
+                                listener.blockUploaded(block, done, length);
+                            }
+                        } catch (Throwable e) {
+                            // Including errors: a block that silently died would leave a hole in the blob
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            if (buffer != null) {
+                                buffers.release(buffer);
+                            }
+                            // Tune before freeing the slot, so the next block is cut with the new settings
+                            tuner.onBlock(generation, start, System.nanoTime(), block.length(), attempts, ok);
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+        }
+
+        Throwable error = failure.get();
+        if (error instanceof IOException io) {
+            throw io;
+        } else if (error instanceof InterruptedException ie) {
+            throw ie;
+        } else if (error instanceof Error e) {
+            throw e;
+        } else if (error != null) {
+            throw new IOException("Block upload failed: " + error.getMessage(), error);
+        }
+
+        if (verification != null) {
+            try {
+                verification.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+
+        blocks.sort(Comparator.comparingLong(Block::offset));
+        LOGGER.info("Uploaded " + length + " bytes in " + blocks.size() + " blocks (" + tuner.describe() + ")");
+        putBlockList(sasUri, blocks.stream().map(Block::id).toList());
+    }
+
+    /**
+     * Fails before any bytes are sent if the blob cannot be finished within
+     * Azure's block limit even at the largest block size.
+     */
+    private static void checkBlockCount(int resumedBlocks, List<long[]> gaps) throws IOException {
+        long fewest = resumedBlocks;
+        for (long[] gap : gaps) {
+            fewest += (gap[1] - gap[0] + MAX_PUT_BLOCK_SIZE - 1) / MAX_PUT_BLOCK_SIZE;
+        }
+        if (fewest > MAX_BLOCKS) {
+            throw new IOException("Content needs at least " + fewest + " blocks, more than Azure's limit of "
+                    + MAX_BLOCKS + " blocks per blob");
+        }
+    }
+
+    /**
+     * The tuner's block size, but never so small that the rest of the blob
+     * would need more blocks than Azure allows.
+     */
+    private int blockSizeFor(long unassignedBytes, int blocksLeft) throws IOException {
+        if (blocksLeft <= 0) {
+            throw new IOException("Blob would need more than " + MAX_BLOCKS + " blocks");
+        }
+        long minimum = (unassignedBytes + blocksLeft - 1) / blocksLeft;
+        return (int) Math.min(MAX_PUT_BLOCK_SIZE, Math.max(tuner.getBlockSize(), minimum));
+    }
+
+    /** Counts blocks in flight against a limit that may change between blocks. */
+    private static class InFlightLimit {
+        private int active;
+        private boolean aborted;
+
+        synchronized void acquire(IntSupplier limit) throws InterruptedException {
+            while (active >= limit.getAsInt() && !aborted) {
+                wait();
+            }
+            active++;
+        }
+
+        /** Lets a waiting {@link #acquire} return at once; the caller then sees the failure. */
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+        synchronized void release() {
+            active--;
+            notifyAll();
+        }
+    }
+
+    /** Fixed-width block ID (Azure requires every ID of a blob to have the same length). */
+    static String blockId(int index) {
+        return Base64.getEncoder().encodeToString(
+                String.format("%0" + BLOCK_ID_DIGITS + "d", index).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Fills {@code buffer} up to its limit from {@code position} and flips it for sending. */
+    static ByteBuffer readBlock(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file while reading block at " + position);
+            }
+        }
+        return buffer.flip();
+    }
+
+    /** @return the attempts it took. */
+    private int putBlock(String sasUri, String blockId, ByteBuffer data, Telemetry.BlockTimer timer)
+            throws IOException, InterruptedException {
+        URI uri = URI.create(sasUri + "&comp=block&blockid=" + URLEncoder.encode(blockId, StandardCharsets.UTF_8));
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(5))
+                .header("x-ms-version", STORAGE_API_VERSION)
+                .header("x-ms-blob-type", "BlockBlob")
+                .header("Content-MD5", contentMd5(data))
+                .PUT(HttpRequest.BodyPublishers.fromPublisher(new BufferPublisher(data), data.remaining()))
+                .build();
+        return sendWithRetry(request, "Put Block " + blockId, timer);
+    }
+
+    static String contentMd5(ByteBuffer data) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data.duplicate());
+            return Base64.getEncoder().encodeToString(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Publishes read-only slices of one buffer. Every subscription (one per
+     * attempt) starts again from the beginning, so retries resend the same
+     * bytes without reading the block again.
+     */
+    private record BufferPublisher(ByteBuffer data) implements Flow.Publisher<ByteBuffer> {
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new BufferSubscription(subscriber, data.asReadOnlyBuffer()));
+        }
+    }
+
+    private static class BufferSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final ByteBuffer remaining;
+        private long demand;
+        private boolean emitting;
+        private boolean done;
+
+        BufferSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, ByteBuffer remaining) {
+            this.subscriber = subscriber;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (n <= 0) {
+                    done = true;
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    if (emitting) {
+                        // Called from onNext; the loop below picks up the new demand
+                        return;
+                    }
+                    emitting = true;
+                }
+            }
+            if (n <= 0) {
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            while (true) {
+                ByteBuffer slice;
+                synchronized (this) {
+                    if (done) {
+                        emitting = false;
+                        return;
+                    }
+                    if (!remaining.hasRemaining()) {
+                        done = true;
+                        emitting = false;
+                        slice = null;
+                    } else if (demand == 0) {
+                        emitting = false;
+                        return;
+                    } else {
+                        demand--;
+                        int length = Math.min(BODY_SLICE_SIZE, remaining.remaining());
+                        slice = remaining.slice(remaining.position(), length);
+                        remaining.position(remaining.position() + length);
+                    }
+                }
+                if (slice == null) {
+                    subscriber.onComplete();
+                    return;
+                }
+                subscriber.onNext(slice);
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            done = true;
+        }
+    }
+
+    private void putBlockList(String sasUri, List<String> blockIds) throws IOException, InterruptedException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+        for (String id : blockIds) {
+            xml.append("<Latest>").append(id).append("</Latest>");
+        }
+        xml.append("</BlockList>");
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(sasUri + "&comp=blocklist"))
+                .timeout(Duration.ofMinutes(5))
+                .header("x-ms-version", STORAGE_API_VERSION)
+                .header("Content-Type", "application/xml")
+                .PUT(HttpRequest.BodyPublishers.ofString(xml.toString()))
+                .build();
+        sendWithRetry(request, "Put Block List", null);
+    }
+
+    /**
+     * Sends with retries and records the request (and the block, if given)
+     * with its attempt count and final status in {@link Telemetry}.
+     *
+     * @return the attempts it took.
+     */
+    private int sendWithRetry(HttpRequest request, String operation, Telemetry.BlockTimer block)
+            throws IOException, InterruptedException {
+        Telemetry.RequestTimer timer = Telemetry.startRequest(ThrottleGovernor.EndpointClass.STORAGE,
+                block != null ? "Put Block" : operation);
+        IOException last = null;
+        int status = 0;
+        int attempt = 1;
+        try {
+            for (; attempt <= MAX_ATTEMPTS; attempt++) {
+                boolean throttled = false;
+                governor.acquire(ThrottleGovernor.EndpointClass.STORAGE);
+                try {
+                    HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                    status = response.statusCode();
+                    throttled = governor.onResponse(ThrottleGovernor.EndpointClass.STORAGE, status,
+                            response.headers());
+                    if (status / 100 == 2) {
+                        return attempt;
+                    }
+                    last = new IOException(operation + " failed: HTTP " + status + " " + response.body());
+                    // Md5Mismatch means the block was damaged in transit; sending it again may succeed
+                    if (status / 100 == 4 && status != 408 && status != 429
+                            && !response.body().contains("Md5Mismatch")) {
+                        throw last;
+                    }
+                } catch (IOException e) {
+                    if (e == last) {
+                        throw e;
+                    }
+                    last = e;
+                    status = 0;
+                }
+                if (attempt < MAX_ATTEMPTS) {
+                    if (throttled) {
+                        // The governor has paused all storage traffic; the next acquire() waits it out
+                        LOGGER.warning(operation + " throttled (" + last.getMessage() + "), retrying after pause");
+                        continue;
+                    }
+                    long backoff = (500L << attempt) + ThreadLocalRandom.current().nextLong(250);
+                    LOGGER.warning(operation + " attempt " + attempt + " failed (" + last.getMessage()
+                            + "), retrying in " + backoff + " ms");
+                    Thread.sleep(backoff);
+                }
+            }
+            attempt = MAX_ATTEMPTS;
+            throw last;
+        } finally {
+            timer.end(attempt, status);
+            if (block != null) {
+                block.end(attempt, status);
+            }
+        }
+    }
+}
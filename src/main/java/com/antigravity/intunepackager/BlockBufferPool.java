@@ -0,0 +1,82 @@
+package com.antigravity.intunepackager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide pool of direct buffers that upload blocks are read into and
+ * sent from. Each block in flight holds one buffer, so the pool grows to
+ * the number of blocks in flight and is then reused block after block;
+ * memory stays flat however large the package is. Buffers that became too
+ * small after the block size grew are dropped, and at most
+ * {@link #MAX_IDLE_BYTES} are kept between uploads. When the JVM's direct
+ * memory limit is reached, blocks fall back to heap buffers.
+ */
+public class BlockBufferPool {
+    private static final Logger LOGGER = Logger.getLogger(BlockBufferPool.class.getName());
+    private static final int MB = 1024 * 1024;
+    /** Matches what one upload may have in flight at once. */
+    static final long MAX_IDLE_BYTES = UploadTuner.MAX_BUFFERED_BYTES;
+
+    private static final BlockBufferPool SHARED = new BlockBufferPool();
+
+    private final List<ByteBuffer> idle = new ArrayList<>();
+    private long idleBytes;
+
+    public static BlockBufferPool getShared() {
+        return SHARED;
+    }
+
+    /** A cleared buffer with its limit set to {@code length}; give it back with {@link #release}. */
+    public synchronized ByteBuffer acquire(int length) {
+        ByteBuffer best = null;
+        for (ByteBuffer buffer : idle) {
+            if (buffer.capacity() >= length && (best == null || buffer.capacity() < best.capacity())) {
+                best = buffer;
+            }
+        }
+        if (best != null) {
+            idle.remove(best);
+            idleBytes -= best.capacity();
+            Telemetry.count("upload.buffers.reused", 1);
+            return best.clear().limit(length);
+        }
+        // The block size has grown past these; they would only sit idle
+        idle.removeIf(buffer -> buffer.capacity() < length);
+        idleBytes = idle.stream().mapToLong(ByteBuffer::capacity).sum();
+        Telemetry.count("upload.buffers.allocated", 1);
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, ((long) length + MB - 1) / MB * MB);
+        try {
+            return ByteBuffer.allocateDirect(capacity).limit(length);
+        } catch (OutOfMemoryError e) {
+            // -XX:MaxDirectMemorySize (by default the heap size) is used up by blocks in flight
+            LOGGER.warning("Direct buffer memory exhausted, reading block into the heap: " + e.getMessage());
+            idle.clear();
+            idleBytes = 0;
+            Telemetry.count("upload.buffers.heap", 1);
+            return ByteBuffer.allocate(length);
+        }
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        idle.add(buffer);
+        idleBytes += buffer.capacity();
+        if (idleBytes > MAX_IDLE_BYTES) {
+            idle.sort(Comparator.comparingInt(ByteBuffer::capacity));
+            while (idleBytes > MAX_IDLE_BYTES && !idle.isEmpty()) {
+                idleBytes -= idle.remove(0).capacity();
+            }
+        }
+    }
+
+    /** Bytes held by idle buffers. */
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+}
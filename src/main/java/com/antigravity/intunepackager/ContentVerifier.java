@@ -0,0 +1,96 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Recomputes the HMAC-SHA256 of a package's encrypted content (IV plus
+ * ciphertext, keyed with Detection.xml's MacKey) and compares it with
+ * Detection.xml's Mac and with the HMAC stored in front of the content.
+ *
+ * Runs on its own thread while the blocks upload; hashing is faster than
+ * the network, so a healthy package is verified before the last block is
+ * acknowledged and a corrupt one aborts the upload long before Intune's
+ * commit would reject it.
+ */
+public class ContentVerifier {
+    private static final Logger LOGGER = Logger.getLogger(ContentVerifier.class.getName());
+
+    private static final int HMAC_LENGTH = 32;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private ContentVerifier() {
+    }
+
+    /**
+     * Starts verifying in the background.
+     *
+     * @return completes normally if the content matches, exceptionally with
+     *         an {@link IOException} if it does not or cannot be read.
+     */
+    public static CompletableFuture<Void> verifyAsync(IntunewinArchive archive, JobReport report) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Thread.ofPlatform().daemon().name("content-verifier").start(() -> {
+            try (Telemetry.Span span = Telemetry.start(report, "verify")) {
+                span.bytes(archive.getContentLength());
+                verify(archive);
+                span.complete();
+                result.complete(null);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** Verifies on the calling thread; throws if the content does not match Detection.xml. */
+    public static void verify(IntunewinArchive archive) throws Exception {
+        IntunewinManifest manifest = archive.getManifest();
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(manifest.getMac());
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(b64.decode(manifest.getMacKey()), "HmacSHA256"));
+
+        long start = archive.getContentOffset();
+        long end = start + archive.getContentLength();
+        ByteBuffer stored = ByteBuffer.allocate(HMAC_LENGTH);
+        try (FileChannel channel = FileChannel.open(archive.getPath(), StandardOpenOption.READ)) {
+            readFully(channel, stored, start);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            for (long position = start + HMAC_LENGTH; position < end;) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                readFully(channel, buffer, position);
+                position += buffer.flip().remaining();
+                mac.update(buffer);
+            }
+        }
+
+        byte[] actual = mac.doFinal();
+        if (!MessageDigest.isEqual(actual, expected)) {
+            throw new IOException("Encrypted content of " + archive.getPath().getFileName()
+                    + " does not match the Mac in Detection.xml; the package is corrupt, rebuild it");
+        }
+        if (!MessageDigest.isEqual(stored.array(), expected)) {
+            throw new IOException("HMAC stored in " + archive.getPath().getFileName()
+                    + " does not match the Mac in Detection.xml; the package is corrupt, rebuild it");
+        }
+        LOGGER.info("Verified HMAC of " + archive.getPath().getFileName());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file while verifying at " + position);
+            }
+        }
+    }
+}
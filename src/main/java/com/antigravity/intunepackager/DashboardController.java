@@ -1,5 +1,6 @@
 package com.antigravity.intunepackager;
 
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -16,8 +17,11 @@ import javafx.stage.FileChooser;
 
 import java.io.File;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.util.Map;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
 
 public class DashboardController {
 
@@ -74,7 +78,7 @@ public class DashboardController {
     @FXML
     private Label packageStatusLabel;
     @FXML
-    private TextArea logArea;
+    private LogConsole logArea;
 
     // --- Action Buttons ---
     @FXML
@@ -85,13 +89,23 @@ public class DashboardController {
     private Button generateButton;
     @FXML
     private Button uploadButton;
+    @FXML
+    private Button cancelPackageButton;
+
+    private static final Duration PACKAGING_TIMEOUT = Duration.ofHours(2);
 
     private int currentStep = 1;
     private SettingsManager settingsManager;
+    // The job whose progress the status box shows; earlier ones keep running and log when done
+    private JobEngine.Job packagingJob;
+    // Compresses the selected installer while the user fills in steps 2 and 3
+    private SpeculativePackaging speculation;
 
     @FXML
     public void initialize() {
         settingsManager = new SettingsManager();
+        logArea.setSource("Wizard");
+        logArea.setSpillFile(LogConsole.defaultSpillFile());
         showStep(1);
         logMessage("Intune Application Packager Wizard initialized.");
     }
@@ -199,32 +213,40 @@ public class DashboardController {
             selectedSourceFile = file;
             selectedFileLabel.setText(file.getAbsolutePath());
             logMessage("Selected source file: " + file.getAbsolutePath());
+            startSpeculation(file);
+
+            // Auto-fill App details from the installer (MSI Property table or file name)
+            PackageDetails defaults = PackageBuilder.inspect(file);
+            appNameField.setText(defaults.getAppName());
+            if ("MSI".equals(defaults.getSourceType())) {
+                publisherField.setText(defaults.getPublisher());
+                versionField.setText(defaults.getVersion());
+            }
+            installCmdField.setText(defaults.getInstallCmd());
+            uninstallCmdField.setText(defaults.getUninstallCmd());
+            detectionRuleField.setText(defaults.getDetectionRule());
+            logMessage("MSI".equals(defaults.getSourceType())
+                    ? "Auto-filled MSI details from the Property table."
+                    : "Auto-filled default EXE commands.");
+        }
+    }
 
-            // Auto-fill App details based on filename
-            appNameField.setText(file.getName().replace(".msi", "").replace(".exe", ""));
-
-            // Basic auto-fill for MSI
-            if (file.getName().toLowerCase().endsWith(".msi")) {
-                Map<String, String> props = MsiInspector.getMsiProperties(file.getAbsolutePath());
-                appNameField.setText(props.getOrDefault("ProductName", file.getName().replace(".msi", "")));
-                publisherField.setText(props.getOrDefault("Manufacturer", "Unknown Publisher"));
-                versionField.setText(props.getOrDefault("ProductVersion", "1.0.0"));
-
-                String productCode = props.getOrDefault("ProductCode", "{PRODUCT-CODE}");
-                installCmdField.setText(
-                        "%SystemRoot%\\sysnative\\WindowsPowerShell\\v1.0\\powershell.exe -windowstyle hidden -executionpolicy bypass -command .\\install.ps1");
-                uninstallCmdField.setText(
-                        "%SystemRoot%\\sysnative\\WindowsPowerShell\\v1.0\\powershell.exe -windowstyle hidden -executionpolicy bypass -command .\\uninstall.ps1");
-                detectionRuleField.setText(productCode);
-                logMessage("Auto-filled MSI details using PowerShell inspector.");
-            } else if (file.getName().toLowerCase().endsWith(".exe")) {
-                installCmdField.setText(
-                        "%SystemRoot%\\sysnative\\WindowsPowerShell\\v1.0\\powershell.exe -windowstyle hidden -executionpolicy bypass -command .\\install.ps1");
-                uninstallCmdField.setText(
-                        "%SystemRoot%\\sysnative\\WindowsPowerShell\\v1.0\\powershell.exe -windowstyle hidden -executionpolicy bypass -command .\\uninstall.ps1");
-                detectionRuleField.setText("C:\\Program Files\\...");
-                logMessage("Auto-filled default EXE commands.");
+    private void startSpeculation(File installer) {
+        if (speculation != null) {
+            if (speculation.isFor(installer)) {
+                return;
             }
+            speculation.discard();
+        }
+        speculation = SpeculativePackaging.start(installer);
+        if (speculation != null) {
+            SpeculativePackaging started = speculation;
+            logMessage("Compressing " + installer.getName() + " in the background...");
+            started.getResult().whenComplete((compressed, error) -> Platform.runLater(() -> {
+                if (error == null && started == speculation) {
+                    logMessage("Background compression of " + installer.getName() + " finished.");
+                }
+            }));
         }
     }
 
@@ -251,79 +273,105 @@ public class DashboardController {
             return;
         }
 
-        generationProgressBox.setVisible(true);
-        packageStatusLabel.setText("Preparing workspace...");
-        packageProgressBar.setProgress(0.2);
-
-        try {
-            File sourceFile = selectedSourceFile;
-            File outputDir = new File(outputFolderField.getText());
-
-            // Create staging directory
-            File stagingDir = new File(outputDir, "staging");
-            if (!stagingDir.exists()) {
-                stagingDir.mkdirs();
-            }
-
-            // Copy source file to staging
-            packageStatusLabel.setText("Copying installer to staging...");
-            File stagedSourceFile = new File(stagingDir, sourceFile.getName());
-            Files.copy(sourceFile.toPath(), stagedSourceFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            packageProgressBar.setProgress(0.4);
-
-            PackageDetails details = new PackageDetails();
-            details.setSourcePath(sourceFile.getAbsolutePath());
-            details.setSourceFileName(sourceFile.getName());
-            details.setSourceType(sourceFile.getName().toLowerCase().endsWith(".msi") ? "MSI" : "EXE");
-            details.setAppName(appNameField.getText());
-            details.setPublisher(publisherField.getText());
-            details.setVersion(versionField.getText());
-            details.setDescription(descriptionArea.getText());
-            details.setInstallCmd(installCmdField.getText());
-            details.setUninstallCmd(uninstallCmdField.getText());
-            details.setDetectionRule(detectionRuleField.getText());
-            details.setPreInstallScript(preInstallScriptArea.getText());
-
-            packageStatusLabel.setText("Generating PowerShell scripts...");
-            ScriptGenerator generator = new ScriptGenerator();
-            generator.generateInstallScript(stagingDir, details);
-            generator.generateUninstallScript(stagingDir, details);
-            generator.generateDetectScript(stagingDir, details);
-
-            // Capture the content of the detection script for Intune upload
-            File detectFile = new File(stagingDir, "detect.ps1");
-            if (detectFile.exists()) {
-                details.setDetectionScript(Files.readString(detectFile.toPath()));
-            }
-
-            packageProgressBar.setProgress(0.6);
-
-            packageStatusLabel.setText("Running IntuneWinAppUtil.exe...");
-            PackagerService packager = new PackagerService();
-            String toolPath = settingsManager.getToolPath();
-
-            if (toolPath == null || toolPath.isEmpty()) {
-                logMessage("Error: IntuneWinAppUtil.exe path not configured in settings.");
-                return;
-            }
+        File sourceFile = selectedSourceFile;
+        File outputDir = new File(outputFolderField.getText());
+        String key = outputDir.getAbsoluteFile().toPath().normalize().toString();
+        if (JobEngine.getShared().isRunning(key)) {
+            logMessage("A package is already being built in " + outputDir.getAbsolutePath() + ".");
+            return;
+        }
 
-            boolean packageSuccess = packager.packageApp(stagingDir, "install.ps1", outputDir, toolPath);
+        // Snapshot the form here; the job itself must not touch UI controls
+        PackageDetails details = new PackageDetails();
+        details.setSourcePath(sourceFile.getAbsolutePath());
+        details.setSourceFileName(sourceFile.getName());
+        details.setSourceType(sourceFile.getName().toLowerCase().endsWith(".msi") ? "MSI" : "EXE");
+        details.setAppName(appNameField.getText());
+        details.setPublisher(publisherField.getText());
+        details.setVersion(versionField.getText());
+        details.setDescription(descriptionArea.getText());
+        details.setInstallCmd(installCmdField.getText());
+        details.setUninstallCmd(uninstallCmdField.getText());
+        details.setDetectionRule(detectionRuleField.getText());
+        details.setPreInstallScript(preInstallScriptArea.getText());
+
+        PackageBuilder builder = new PackageBuilder();
+        builder.setJobReport(new JobReport("package", details.getAppName()));
+        File[] stagingDir = new File[1];
+        List<JobEngine.Stage> stages = new ArrayList<>(List.of(
+                JobEngine.stage("Copying installer to staging...", 0.3, ctx -> stagingDir[0] = builder
+                        .stageInstaller(details, outputDir, (done, total) -> ctx.progress(
+                                (double) done / total, "Copying installer to staging..."))),
+                JobEngine.stage("Generating PowerShell scripts...", 0.05,
+                        ctx -> builder.generateScripts(details, stagingDir[0]))));
+        SpeculativePackaging compressing = speculation != null && speculation.isFor(sourceFile) ? speculation : null;
+        if (compressing != null && !compressing.isDone()) {
+            // Still compressing in the background: wait for it rather than compressing the installer twice
+            stages.add(JobEngine.stage("Compressing installer...", 0.55, ctx -> compressing.await((done, total) -> ctx
+                    .progress(total > 0 ? (double) done / total : 1, "Compressing installer..."))));
+        }
+        // With the installer already compressed, packaging is mostly encryption
+        stages.add(JobEngine.stage("Encrypting and packaging...", compressing != null ? 0.1 : 0.65,
+                ctx -> builder.packageApp(details, stagingDir[0], outputDir, (done, total) -> ctx
+                        .progress(total > 0 ? (double) done / total : 1, "Encrypting and packaging..."))));
 
-            if (packageSuccess) {
-                packageProgressBar.setProgress(1.0);
-                packageStatusLabel.setText("Success!");
-                logMessage("Successfully created .intunewin package in: " + outputDir.getAbsolutePath());
-                handleNext(null); // Auto-advance to Step 4
-            } else {
-                packageProgressBar.setProgress(0.0);
-                packageStatusLabel.setText("Failed.");
-                logMessage("Failed to create .intunewin package.");
-            }
+        generationProgressBox.setVisible(true);
+        packageStatusLabel.setText("Preparing workspace...");
+        packageProgressBar.setProgress(0);
+        cancelPackageButton.setDisable(false);
+
+        packagingJob = JobEngine.getShared().submit(key, details.getAppName(), PACKAGING_TIMEOUT, Platform::runLater,
+                new JobEngine.JobListener() {
+                    @Override
+                    public void stageStarted(JobEngine.Job job, String stage) {
+                        if (job == packagingJob) {
+                            packageStatusLabel.setText(stage);
+                        }
+                    }
+
+                    @Override
+                    public void progress(JobEngine.Job job, double progress, String message) {
+                        if (job == packagingJob) {
+                            packageProgressBar.setProgress(progress);
+                        }
+                    }
+
+                    @Override
+                    public void finished(JobEngine.Job job, Throwable error) {
+                        boolean current = job == packagingJob;
+                        if (current) {
+                            cancelPackageButton.setDisable(true);
+                        }
+                        if (error == null) {
+                            logMessage("Successfully created .intunewin package in: " + outputDir.getAbsolutePath());
+                            if (current) {
+                                packageProgressBar.setProgress(1.0);
+                                packageStatusLabel.setText("Success!");
+                                if (currentStep == 3) {
+                                    handleNext(null); // Auto-advance to Step 4
+                                }
+                            }
+                        } else if (error instanceof CancellationException || error instanceof TimeoutException) {
+                            logMessage(error.getMessage());
+                            if (current) {
+                                packageStatusLabel.setText(error instanceof TimeoutException ? "Timed out" : "Cancelled");
+                            }
+                        } else {
+                            logMessage("Error generating package for " + job.getName() + ": " + error.getMessage());
+                            if (current) {
+                                packageStatusLabel.setText("Error");
+                            }
+                        }
+                    }
+                }, stages);
+        logMessage("Packaging " + details.getAppName() + " in the background.");
+    }
 
-        } catch (Exception e) {
-            packageStatusLabel.setText("Error");
-            logMessage("Error generating scripts: " + e.getMessage());
-            e.printStackTrace();
+    @FXML
+    public void handleCancelPackage(ActionEvent event) {
+        if (packagingJob != null && packagingJob.getState() == JobEngine.State.RUNNING) {
+            packageStatusLabel.setText("Cancelling...");
+            packagingJob.cancel();
         }
     }
 
@@ -350,8 +398,7 @@ public class DashboardController {
             javafx.scene.Parent root = loader.load();
             TestModeController controller = loader.getController();
             controller.setStagingDirectory(stagingDir);
-            controller
-                    .setLogCallback(msg -> javafx.application.Platform.runLater(() -> logMessage("[Testing] " + msg)));
+            controller.setLogCallback(msg -> logArea.log("Testing", msg));
 
             javafx.stage.Stage stage = new javafx.stage.Stage();
             stage.setTitle("Testing Mode - " + appNameField.getText());
@@ -404,7 +451,7 @@ public class DashboardController {
             }
 
             logMessage("Initiating Intune authentication...");
-            GraphAuthService authService = new GraphAuthService(clientId, tenantId);
+            GraphAuthService authService = GraphAuthService.forTenant(clientId, tenantId);
             com.microsoft.graph.serviceclient.GraphServiceClient graphClient = authService.getGraphClient();
 
             // Open the upload progress dialog
@@ -417,6 +464,7 @@ public class DashboardController {
             stage.setTitle("Uploading to Intune - " + details.getAppName());
             stage.initModality(javafx.stage.Modality.APPLICATION_MODAL);
             stage.setScene(new javafx.scene.Scene(root));
+            stage.setOnHidden(e -> uploadController.dispose());
             stage.show();
 
             logMessage("Upload dialog opened.");
@@ -438,6 +486,6 @@ public class DashboardController {
     }
 
     private void logMessage(String message) {
-        logArea.appendText(message + "\n");
+        logArea.log(message);
     }
 }
@@ -0,0 +1,177 @@
+package com.antigravity.intunepackager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 of a file, together with the size and modification time it was
+ * computed for.
+ *
+ * The hash is computed as a side effect of reads that happen anyway
+ * (staging copy, packaging) via {@link Accumulator} /
+ * {@link DigestingInputStream}, and remembered per path for the life of the
+ * process. {@link #of(Path)} only reads the file itself when nothing has
+ * hashed the current version yet.
+ */
+public class FileDigests {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Map<Path, FileDigests> KNOWN = new ConcurrentHashMap<>();
+
+    private final String sha256;
+    private final long size;
+    private final long lastModified;
+
+    public FileDigests(String sha256, long size, long lastModified) {
+        this.sha256 = sha256;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /** Digests of the file's current contents, hashing it only if they aren't known yet. */
+    public static FileDigests of(Path file) throws IOException {
+        FileDigests known = lookup(file);
+        if (known != null) {
+            return known;
+        }
+        Accumulator accumulator = new Accumulator();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                accumulator.update(buffer, 0, n);
+            }
+        }
+        return accumulator.finish(file);
+    }
+
+    /** The remembered digests if they still describe the file on disk, else null. */
+    public static FileDigests lookup(Path file) {
+        FileDigests known = KNOWN.get(key(file));
+        return known != null && known.isValidFor(file) ? known : null;
+    }
+
+    /**
+     * Records digests for another path with identical contents (a link or
+     * copy), as long as the file is still what they describe.
+     */
+    public static void remember(Path file, FileDigests digests) {
+        try {
+            FileDigests rebased = new FileDigests(digests.sha256, Files.size(file),
+                    Files.getLastModifiedTime(file).toMillis());
+            if (rebased.size == digests.size) {
+                KNOWN.put(key(file), rebased);
+            }
+        } catch (IOException e) {
+            // Not worth failing the caller for
+        }
+    }
+
+    private static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    public boolean isValidFor(Path file) {
+        try {
+            return Files.size(file) == size && Files.getLastModifiedTime(file).toMillis() == lastModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Lowercase hex SHA-256. */
+    public String getSha256() {
+        return sha256;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /** Feeds bytes into SHA-256 and counts them. */
+    public static class Accumulator {
+        private final MessageDigest sha256;
+        private long count;
+
+        public Accumulator() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void update(byte[] b, int off, int len) {
+            sha256.update(b, off, len);
+            count += len;
+        }
+
+        /** Consumes the buffer's remaining bytes without moving its position. */
+        public void update(ByteBuffer buffer) {
+            sha256.update(buffer.duplicate());
+            count += buffer.remaining();
+        }
+
+        /**
+         * Completes the digests and remembers them for {@code file}, which
+         * must be the file that was fed through in full.
+         */
+        public FileDigests finish(Path file) throws IOException {
+            FileDigests digests = new FileDigests(HexFormat.of().formatHex(sha256.digest()), count,
+                    Files.getLastModifiedTime(file).toMillis());
+            if (Files.size(file) == count) {
+                KNOWN.put(key(file), digests);
+            }
+            return digests;
+        }
+    }
+
+    /** Input stream that hashes everything read through it. */
+    public static class DigestingInputStream extends FilterInputStream {
+        private final Accumulator accumulator = new Accumulator();
+
+        public DigestingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                accumulator.update(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                accumulator.update(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip() would leave bytes out of the digest");
+        }
+
+        public Accumulator getAccumulator() {
+            return accumulator;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.JsonObject;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Waits for an Intune content file to reach an upload state
+ * (azureStorageUriRequestSuccess, commitFileSuccess, ...).
+ *
+ * Polls start after a short delay and back off exponentially with jitter, so
+ * a file that is ready in under a second is noticed in under a second
+ * without hammering Graph when it isn't. All polls of all uploads share one
+ * scheduler thread: a tick only submits the GET through the
+ * {@link GraphBatcher} (so polls from parallel uploads share $batch round
+ * trips) and the response schedules the next tick. Nothing blocks while
+ * waiting.
+ */
+public class FileStatePoller {
+    private static final Logger LOGGER = Logger.getLogger(FileStatePoller.class.getName());
+
+    private static final long INITIAL_DELAY_MILLIS = 250;
+    private static final long MAX_DELAY_MILLIS = 5000;
+    private static final double BACKOFF = 1.6;
+    private static final double JITTER = 0.2;
+    private static final int MAX_CONSECUTIVE_ERRORS = 3;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "file-state-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final GraphBatcher graph;
+
+    public FileStatePoller(GraphBatcher graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Completes with the file object once its uploadState is
+     * {@code targetState}; fails if Intune reports a *Failed state or the
+     * timeout passes. Cancelling the future stops the polling.
+     *
+     * @param onStateChange called (from a background thread) whenever the
+     *                      observed state differs from the previous poll.
+     */
+    public CompletableFuture<JsonObject> await(String fileStatusPath, String targetState, Duration timeout,
+            Consumer<String> onStateChange) {
+        Poll poll = new Poll(fileStatusPath, targetState, System.nanoTime() + timeout.toNanos(), onStateChange);
+        poll.schedule(INITIAL_DELAY_MILLIS);
+        return poll.result;
+    }
+
+    private class Poll {
+        final String path;
+        final String targetState;
+        final long deadline;
+        final Consumer<String> onStateChange;
+        final CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        long delay = INITIAL_DELAY_MILLIS;
+        String lastState;
+        int errors;
+
+        Poll(String path, String targetState, long deadline, Consumer<String> onStateChange) {
+            this.path = path;
+            this.targetState = targetState;
+            this.deadline = deadline;
+            this.onStateChange = onStateChange;
+        }
+
+        void schedule(long millis) {
+            long jittered = Math.round(millis * (1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1)));
+            SCHEDULER.schedule(this::tick, jittered, TimeUnit.MILLISECONDS);
+        }
+
+        void tick() {
+            if (result.isDone()) {
+                return;
+            }
+            graph.submit("GET", path, null).whenComplete((file, error) -> {
+                if (result.isDone()) {
+                    return;
+                }
+                if (error != null) {
+                    if (++errors >= MAX_CONSECUTIVE_ERRORS) {
+                        result.completeExceptionally(error);
+                        return;
+                    }
+                    LOGGER.warning("File state poll failed (" + errors + "/" + MAX_CONSECUTIVE_ERRORS + "): "
+                            + error.getMessage());
+                    next();
+                    return;
+                }
+                errors = 0;
+                String state = file.has("uploadState") && !file.get("uploadState").isJsonNull()
+                        ? file.get("uploadState").getAsString()
+                        : "";
+                if (!state.equals(lastState)) {
+                    lastState = state;
+                    if (onStateChange != null) {
+                        onStateChange.accept(state);
+                    }
+                }
+                if (targetState.equals(state)) {
+                    result.complete(file);
+                } else if (state.contains("Failed")) {
+                    result.completeExceptionally(new Exception("Intune returned failed state: " + state));
+                } else {
+                    next();
+                }
+            });
+        }
+
+        void next() {
+            if (System.nanoTime() >= deadline) {
+                result.completeExceptionally(new Exception("Timeout waiting for file state: " + targetState
+                        + " (last state: " + lastState + ")"));
+                return;
+            }
+            schedule(delay);
+            delay = Math.min(MAX_DELAY_MILLIS, Math.round(delay * BACKOFF));
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+
+/**
+ * A Graph call that came back with an error status, sent directly or as
+ * part of a $batch.
+ */
+public class GraphApiException extends IOException {
+    private final int status;
+
+    public GraphApiException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /** HTTP status of the response, e.g. 404 when the object does not exist. */
+    public int getStatus() {
+        return status;
+    }
+}
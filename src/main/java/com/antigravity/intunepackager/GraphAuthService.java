@@ -1,44 +1,212 @@
 package com.antigravity.intunepackager;
 
 import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
 import com.azure.core.credential.TokenRequestContext;
+import com.azure.identity.AuthenticationRecord;
+import com.azure.identity.AuthenticationRequiredException;
 import com.azure.identity.InteractiveBrowserCredential;
 import com.azure.identity.InteractiveBrowserCredentialBuilder;
+import com.azure.identity.TokenCachePersistenceOptions;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
+import reactor.core.publisher.Mono;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Signs the user in to Microsoft Graph and keeps a token ready.
+ *
+ * There is one instance per tenant/client ({@link #forTenant}), holding one
+ * credential and one {@link GraphServiceClient} for the life of the process,
+ * so the browser prompt only appears once. The access token is cached and
+ * renewed silently in the background a few minutes before it expires;
+ * callers only wait when there is no usable token at all.
+ *
+ * If enabled in the settings, MSAL's token cache is also persisted to disk
+ * (encrypted by the OS: DPAPI, Keychain or libsecret) together with the
+ * signed-in account, so sign-in survives restarts.
+ */
 public class GraphAuthService {
+    private static final Logger LOGGER = Logger.getLogger(GraphAuthService.class.getName());
+
+    private static final String[] SCOPES = new String[] { "DeviceManagementApps.ReadWrite.All" };
+    private static final String TOKEN_CACHE_NAME = "IntunePackager";
+    // MSAL only redeems the refresh token inside the last 5 minutes, so refresh just after that point
+    private static final Duration REFRESH_BEFORE_EXPIRY = Duration.ofMinutes(4);
+    private static final Duration MIN_REMAINING = Duration.ofMinutes(2);
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+
+    private static final Map<String, GraphAuthService> INSTANCES = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "graph-token-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final String clientId;
     private final String tenantId;
+    private final Path authRecordFile;
+    private final InteractiveBrowserCredential credential;
+    private final TokenRequestContext tokenRequest = new TokenRequestContext().addScopes(SCOPES);
+    private final Object tokenLock = new Object();
 
-    public GraphAuthService(String clientId, String tenantId) {
+    private volatile AccessToken token;
+    private ScheduledFuture<?> refreshTask;
+    private GraphServiceClient graphClient;
+
+    /** The shared service for this tenant and app registration. */
+    public static GraphAuthService forTenant(String clientId, String tenantId) {
+        return INSTANCES.computeIfAbsent(tenantId + "|" + clientId,
+                key -> new GraphAuthService(clientId, tenantId, new SettingsManager().isTokenCachePersisted()));
+    }
+
+    private GraphAuthService(String clientId, String tenantId, boolean persistTokenCache) {
         this.clientId = clientId;
         this.tenantId = tenantId;
+
+        InteractiveBrowserCredentialBuilder builder = new InteractiveBrowserCredentialBuilder()
+                .clientId(clientId)
+                .tenantId(tenantId)
+                // Never pop a browser from a background refresh; see acquireToken()
+                .disableAutomaticAuthentication();
+
+        if (persistTokenCache) {
+            authRecordFile = SettingsManager.APP_DATA_DIR.resolve("auth-" + tenantId + "-" + clientId + ".json");
+            builder.tokenCachePersistenceOptions(new TokenCachePersistenceOptions().setName(TOKEN_CACHE_NAME));
+            AuthenticationRecord record = readAuthenticationRecord();
+            if (record != null) {
+                builder.authenticationRecord(record);
+            }
+        } else {
+            authRecordFile = null;
+        }
+        credential = builder.build();
     }
 
     /**
-     * Authenticates the user interactively and returns a GraphServiceClient.
-     * 
-     * @return Authenticated GraphServiceClient
+     * The shared Graph client. It takes its tokens from this service's cache
+     * rather than asking the credential on every request.
      */
-    private InteractiveBrowserCredential credential;
-    private final String[] scopes = new String[] { "DeviceManagementApps.ReadWrite.All" };
-
-    public GraphServiceClient getGraphClient() {
-        if (credential == null) {
-            credential = new InteractiveBrowserCredentialBuilder()
-                    .clientId(clientId)
-                    .tenantId(tenantId)
-                    .build();
+    public synchronized GraphServiceClient getGraphClient() {
+        if (graphClient == null) {
+            TokenCredential cached = context -> Mono.fromCallable(this::getToken);
+            graphClient = new GraphServiceClient(cached, SCOPES);
         }
-        return new GraphServiceClient(credential, scopes);
+        return graphClient;
     }
 
     public String getAccessToken() {
-        if (credential == null) {
-            getGraphClient();
+        return getToken().getToken();
+    }
+
+    private AccessToken getToken() {
+        AccessToken current = token;
+        if (isUsable(current)) {
+            return current;
+        }
+        synchronized (tokenLock) {
+            if (!isUsable(token)) {
+                acquireToken(true);
+            }
+            return token;
+        }
+    }
+
+    private static boolean isUsable(AccessToken candidate) {
+        return candidate != null && candidate.getExpiresAt().isAfter(OffsetDateTime.now().plus(MIN_REMAINING));
+    }
+
+    /** Must hold tokenLock. Signs in interactively if allowed and there is no cached account. */
+    private void acquireToken(boolean interactive) {
+        AccessToken fresh;
+        try {
+            fresh = credential.getTokenSync(tokenRequest);
+        } catch (AuthenticationRequiredException e) {
+            if (!interactive) {
+                throw e;
+            }
+            LOGGER.info("Signing in to tenant " + tenantId);
+            AuthenticationRecord record = credential.authenticate(tokenRequest).block();
+            saveAuthenticationRecord(record);
+            fresh = credential.getTokenSync(tokenRequest);
         }
-        AccessToken token = credential.getToken(new TokenRequestContext().addScopes(scopes)).block();
-        return token != null ? token.getToken() : null;
+        token = fresh;
+        scheduleRefresh(fresh);
+    }
+
+    private void scheduleRefresh(AccessToken current) {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+        }
+        long delay = Duration.between(OffsetDateTime.now(), current.getExpiresAt().minus(REFRESH_BEFORE_EXPIRY))
+                .toMillis();
+        // Floor so a token that comes back unrefreshed doesn't spin the refresher
+        refreshTask = REFRESHER.schedule(this::refreshInBackground, Math.max(delay, RETRY_DELAY.toMillis()),
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshInBackground() {
+        synchronized (tokenLock) {
+            try {
+                acquireToken(false);
+                LOGGER.fine("Graph token refreshed, valid until " + token.getExpiresAt());
+            } catch (AuthenticationRequiredException e) {
+                // The next foreground call signs in again
+                LOGGER.warning("Background token refresh needs an interactive sign-in: " + e.getMessage());
+            } catch (RuntimeException e) {
+                LOGGER.warning("Background token refresh failed, retrying: " + e.getMessage());
+                if (isUsable(token)) {
+                    refreshTask = REFRESHER.schedule(this::refreshInBackground, RETRY_DELAY.toMillis(),
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private AuthenticationRecord readAuthenticationRecord() {
+        if (!Files.isRegularFile(authRecordFile)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(authRecordFile)) {
+            return AuthenticationRecord.deserialize(in);
+        } catch (Exception e) {
+            LOGGER.warning("Ignoring unreadable sign-in record " + authRecordFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void saveAuthenticationRecord(AuthenticationRecord record) {
+        if (authRecordFile == null || record == null) {
+            return;
+        }
+        // Account identifiers only; the tokens themselves live in the OS-encrypted MSAL cache
+        try {
+            Files.createDirectories(authRecordFile.getParent());
+            try (OutputStream out = Files.newOutputStream(authRecordFile)) {
+                record.serialize(out);
+            }
+        } catch (Exception e) {
+            LOGGER.warning("Could not save sign-in record: " + e.getMessage());
+        }
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getTenantId() {
+        return tenantId;
     }
 }
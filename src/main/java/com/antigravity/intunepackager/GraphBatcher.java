@@ -0,0 +1,401 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups Graph calls into JSON {@code $batch} requests of up to 20.
+ *
+ * Independent calls go through {@link #submit} (or the blocking
+ * {@link #get}/{@link #post}/{@link #patch}); they are held for a few
+ * milliseconds so that calls made at the same time - e.g. status polls from
+ * several parallel uploads - share one round trip. A lone call is sent
+ * directly, without the batch envelope.
+ *
+ * Calls that must run in order are put in a {@link Batch} with
+ * {@code dependsOn}; Graph runs them sequentially in the same round trip.
+ *
+ * Throttled (429) or unavailable (503/504) sub-requests are reported to the
+ * {@link ThrottleGovernor} and re-sent after their Retry-After, together
+ * with anything that failed only because it depended on them. POSTs are
+ * only re-sent after a 429: after a 503/504 Graph may already have created
+ * the object, so the failure is returned rather than risking a duplicate.
+ */
+public class GraphBatcher {
+    public static final int MAX_BATCH_SIZE = 20;
+    private static final long LINGER_MILLIS = 20;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "graph-batch-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final GraphRestClient rest;
+    private final List<Request> pending = new ArrayList<>();
+    private boolean flushScheduled;
+    private long nextId;
+
+    /** One sub-request and the future its response completes. */
+    private static class Request {
+        final String id;
+        final String method;
+        final String path;
+        final JsonObject body;
+        final Set<String> dependsOn;
+        final CompletableFuture<JsonObject> future = new CompletableFuture<>();
+        int attempts;
+
+        Request(String id, String method, String path, JsonObject body, Set<String> dependsOn) {
+            if (path.startsWith("http")) {
+                throw new IllegalArgumentException("Batched paths must be relative to the Graph version: " + path);
+            }
+            this.id = id;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.dependsOn = dependsOn;
+        }
+    }
+
+    public GraphBatcher(GraphRestClient rest) {
+        this.rest = rest;
+    }
+
+    // ==========================================
+    // Independent calls
+    // ==========================================
+
+    /** Queues an independent call; it is sent with whatever else is queued within a few ms. */
+    public CompletableFuture<JsonObject> submit(String method, String path, JsonObject body) {
+        List<Request> full = null;
+        Request request;
+        synchronized (pending) {
+            request = new Request("q" + (++nextId), method, path, body, new HashSet<>());
+            pending.add(request);
+            if (pending.size() >= MAX_BATCH_SIZE) {
+                full = drainPending();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                FLUSHER.schedule(this::flushPending, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            sendAsync(full);
+        }
+        return request.future;
+    }
+
+    public JsonObject get(String path) throws IOException, InterruptedException {
+        return await(submit("GET", path, null));
+    }
+
+    public JsonObject post(String path, JsonObject body) throws IOException, InterruptedException {
+        return await(submit("POST", path, body));
+    }
+
+    public JsonObject patch(String path, JsonObject body) throws IOException, InterruptedException {
+        return await(submit("PATCH", path, body));
+    }
+
+    /** Blocks for a batched response, unwrapping failures into the exception the call would have thrown. */
+    public static JsonObject await(CompletableFuture<JsonObject> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void flushPending() {
+        List<Request> batch;
+        synchronized (pending) {
+            batch = drainPending();
+        }
+        if (!batch.isEmpty()) {
+            sendAsync(batch);
+        }
+    }
+
+    /** Must hold the pending lock. */
+    private List<Request> drainPending() {
+        List<Request> batch = new ArrayList<>(pending);
+        pending.clear();
+        flushScheduled = false;
+        return batch;
+    }
+
+    private void sendAsync(List<Request> batch) {
+        Thread.ofVirtual().name("graph-batch").start(() -> send(batch));
+    }
+
+    // ==========================================
+    // Dependent calls
+    // ==========================================
+
+    /** Starts an explicit batch whose requests may depend on each other. */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Requests that are sent together when {@link #execute()} is called.
+     * Requests linked by {@code dependsOn} always travel in the same $batch,
+     * so a connected group may not exceed {@value #MAX_BATCH_SIZE}.
+     */
+    public class Batch {
+        private final Map<String, Request> requests = new LinkedHashMap<>();
+
+        public CompletableFuture<JsonObject> add(String id, String method, String path, JsonObject body,
+                String... dependsOn) {
+            for (String dependency : dependsOn) {
+                if (!requests.containsKey(dependency)) {
+                    throw new IllegalArgumentException("Unknown dependency " + dependency + " for request " + id);
+                }
+            }
+            if (requests.containsKey(id)) {
+                throw new IllegalArgumentException("Duplicate request id " + id);
+            }
+            Request request = new Request(id, method, path, body, new HashSet<>(List.of(dependsOn)));
+            requests.put(id, request);
+            return request.future;
+        }
+
+        /** Sends the batch (split into $batch calls of at most 20) and waits for every response. */
+        public void execute() throws InterruptedException {
+            List<List<Request>> chunks = chunk(requests);
+            List<Thread> senders = new ArrayList<>();
+            for (List<Request> chunk : chunks) {
+                senders.add(Thread.ofVirtual().name("graph-batch").start(() -> send(chunk)));
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+        }
+    }
+
+    /** Packs dependency groups (connected components) into chunks of at most MAX_BATCH_SIZE. */
+    private static List<List<Request>> chunk(Map<String, Request> requests) {
+        Map<String, String> root = new LinkedHashMap<>();
+        for (String id : requests.keySet()) {
+            root.put(id, id);
+        }
+        for (Request r : requests.values()) {
+            for (String dependency : r.dependsOn) {
+                root.put(find(root, r.id), find(root, dependency));
+            }
+        }
+        Map<String, List<Request>> groups = new LinkedHashMap<>();
+        for (Request r : requests.values()) {
+            groups.computeIfAbsent(find(root, r.id), k -> new ArrayList<>()).add(r);
+        }
+
+        List<List<Request>> chunks = new ArrayList<>();
+        List<Request> current = new ArrayList<>();
+        for (List<Request> group : groups.values()) {
+            if (group.size() > MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException("A dependency chain of " + group.size()
+                        + " requests does not fit in one $batch (max " + MAX_BATCH_SIZE + ")");
+            }
+            if (current.size() + group.size() > MAX_BATCH_SIZE) {
+                chunks.add(current);
+                current = new ArrayList<>();
+            }
+            current.addAll(group);
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private static String find(Map<String, String> root, String id) {
+        while (!root.get(id).equals(id)) {
+            id = root.get(id);
+        }
+        return id;
+    }
+
+    // ==========================================
+    // Transport
+    // ==========================================
+
+    private void send(List<Request> batch) {
+        List<Request> remaining = batch;
+        while (!remaining.isEmpty()) {
+            long retryAfterMillis;
+            try {
+                if (remaining.size() == 1 && remaining.get(0).dependsOn.isEmpty()) {
+                    sendDirect(remaining.get(0));
+                    return;
+                }
+                BatchResult result = sendBatch(remaining);
+                remaining = result.retry;
+                retryAfterMillis = result.retryAfterMillis;
+            } catch (Exception e) {
+                for (Request r : remaining) {
+                    r.future.completeExceptionally(e);
+                }
+                return;
+            }
+            if (!remaining.isEmpty()) {
+                // Pause every Graph caller, not just this batch; the next acquire waits it out
+                rest.getGovernor().onThrottled(ThrottleGovernor.EndpointClass.GRAPH, retryAfterMillis,
+                        remaining.size() + " batched requests throttled");
+                try {
+                    rest.getGovernor().acquire(ThrottleGovernor.EndpointClass.GRAPH, 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (Request r : remaining) {
+                        r.future.completeExceptionally(e);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private void sendDirect(Request request) {
+        try {
+            JsonObject response = switch (request.method) {
+                case "GET" -> rest.get(request.path);
+                case "POST" -> rest.post(request.path, request.body != null ? request.body : new JsonObject());
+                case "PATCH" -> rest.patch(request.path, request.body != null ? request.body : new JsonObject());
+                default -> throw new IOException("Unsupported method " + request.method);
+            };
+            request.future.complete(response);
+        } catch (Exception e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private static class BatchResult {
+        final List<Request> retry = new ArrayList<>();
+        long retryAfterMillis;
+    }
+
+    private BatchResult sendBatch(List<Request> batch) throws IOException, InterruptedException {
+        JsonArray requests = new JsonArray();
+        for (Request r : batch) {
+            JsonObject item = new JsonObject();
+            item.addProperty("id", r.id);
+            item.addProperty("method", r.method);
+            item.addProperty("url", r.path);
+            if (r.body != null) {
+                item.add("body", r.body);
+                JsonObject headers = new JsonObject();
+                headers.addProperty("Content-Type", "application/json");
+                item.add("headers", headers);
+            }
+            if (!r.dependsOn.isEmpty()) {
+                JsonArray dependsOn = new JsonArray();
+                r.dependsOn.forEach(dependsOn::add);
+                item.add("dependsOn", dependsOn);
+            }
+            requests.add(item);
+        }
+        JsonObject envelope = new JsonObject();
+        envelope.add("requests", requests);
+        // Graph counts every sub-request against the limit; the envelope itself takes one permit in rest.post
+        if (batch.size() > 1) {
+            rest.getGovernor().acquire(ThrottleGovernor.EndpointClass.GRAPH, batch.size() - 1);
+        }
+        boolean safeToRepeat = batch.stream().allMatch(r -> GraphRestClient.isSafeToRepeat(r.method));
+        JsonObject reply = rest.post("/$batch", envelope, safeToRepeat);
+
+        Map<String, Request> byId = new LinkedHashMap<>();
+        batch.forEach(r -> byId.put(r.id, r));
+        Map<String, JsonObject> responses = new LinkedHashMap<>();
+        for (JsonElement element : reply.getAsJsonArray("responses")) {
+            JsonObject response = element.getAsJsonObject();
+            responses.put(response.get("id").getAsString(), response);
+        }
+
+        BatchResult result = new BatchResult();
+        Set<String> retryIds = new HashSet<>();
+        for (Request r : batch) {
+            JsonObject response = responses.get(r.id);
+            int status = response != null ? response.get("status").getAsInt() : 0;
+            boolean retriable = status == 429
+                    || (status == 503 || status == 504) && GraphRestClient.isSafeToRepeat(r.method);
+            if (retriable && ++r.attempts < MAX_ATTEMPTS) {
+                retryIds.add(r.id);
+                result.retryAfterMillis = Math.max(result.retryAfterMillis, retryAfterMillis(response, r.attempts));
+            }
+        }
+        // A 424 only because its dependency is being retried goes along with it
+        boolean grew = true;
+        while (grew) {
+            grew = false;
+            for (Request r : batch) {
+                JsonObject response = responses.get(r.id);
+                if (response != null && response.get("status").getAsInt() == 424 && !retryIds.contains(r.id)
+                        && r.dependsOn.stream().anyMatch(retryIds::contains)) {
+                    retryIds.add(r.id);
+                    grew = true;
+                }
+            }
+        }
+
+        for (Request r : batch) {
+            if (retryIds.contains(r.id)) {
+                result.retry.add(r);
+                continue;
+            }
+            JsonObject response = responses.get(r.id);
+            if (response == null) {
+                r.future.completeExceptionally(new IOException("No response for batched " + r.method + " " + r.path));
+                continue;
+            }
+            int status = response.get("status").getAsInt();
+            JsonElement body = response.get("body");
+            if (status / 100 == 2) {
+                r.future.complete(body != null && body.isJsonObject() ? body.getAsJsonObject() : new JsonObject());
+            } else {
+                r.future.completeExceptionally(new GraphApiException("API ERROR [" + r.method + " "
+                        + rest.getBaseUrl() + r.path + "] HTTP " + status + ": " + (body != null ? body.toString() : ""),
+                        status));
+            }
+        }
+
+        // Succeeded dependencies are not re-sent; drop them from the retried requests' dependsOn
+        for (Request r : result.retry) {
+            r.dependsOn.retainAll(retryIds);
+        }
+        return result;
+    }
+
+    private static long retryAfterMillis(JsonObject response, int attempt) {
+        if (response.has("headers")) {
+            JsonObject headers = response.getAsJsonObject("headers");
+            for (Map.Entry<String, JsonElement> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase("Retry-After")) {
+                    try {
+                        return Long.parseLong(header.getValue().getAsString().trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return 1000L << attempt;
+    }
+}
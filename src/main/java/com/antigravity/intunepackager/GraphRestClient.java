@@ -0,0 +1,118 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Thin JSON client for the Graph endpoints the SDK does not model well
+ * (content versions, content files, commit). Shares the caller's HttpClient.
+ *
+ * Requests are paced by the shared {@link ThrottleGovernor}; throttled
+ * responses (429/503) are retried once the governor's pause has passed. A
+ * POST is only retried after a 429, which Graph sends before doing any
+ * work; after a 503 it may already have created its object, so the error
+ * is returned instead of risking a duplicate.
+ */
+public class GraphRestClient {
+
+    public static final String DEFAULT_BASE_URL = "https://graph.microsoft.com/v1.0";
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final HttpClient httpClient;
+    private final Supplier<String> tokenSupplier;
+    private final String baseUrl;
+    private final ThrottleGovernor governor;
+
+    public GraphRestClient(HttpClient httpClient, Supplier<String> tokenSupplier) {
+        this(httpClient, tokenSupplier, DEFAULT_BASE_URL);
+    }
+
+    public GraphRestClient(HttpClient httpClient, Supplier<String> tokenSupplier, String baseUrl) {
+        this(httpClient, tokenSupplier, baseUrl, ThrottleGovernor.getShared());
+    }
+
+    public GraphRestClient(HttpClient httpClient, Supplier<String> tokenSupplier, String baseUrl,
+            ThrottleGovernor governor) {
+        this.httpClient = httpClient;
+        this.tokenSupplier = tokenSupplier;
+        this.baseUrl = baseUrl;
+        this.governor = governor;
+    }
+
+    public ThrottleGovernor getGovernor() {
+        return governor;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public JsonObject get(String path) throws IOException, InterruptedException {
+        return send("GET", path, null, true);
+    }
+
+    public JsonObject post(String path, JsonObject body) throws IOException, InterruptedException {
+        return send("POST", path, body, false);
+    }
+
+    /** A POST that has no side effects of its own (e.g. a $batch of reads), so it is retried like a GET. */
+    public JsonObject post(String path, JsonObject body, boolean safeToRepeat)
+            throws IOException, InterruptedException {
+        return send("POST", path, body, safeToRepeat);
+    }
+
+    public JsonObject patch(String path, JsonObject body) throws IOException, InterruptedException {
+        return send("PATCH", path, body, true);
+    }
+
+    /** GET and PATCH leave the same result however often they are applied; POST creates something each time. */
+    static boolean isSafeToRepeat(String method) {
+        return !"POST".equals(method);
+    }
+
+    private JsonObject send(String method, String path, JsonObject body, boolean safeToRepeat)
+            throws IOException, InterruptedException {
+        String url = path.startsWith("http") ? path : baseUrl + path;
+        HttpResponse<String> response = null;
+        Telemetry.RequestTimer timer = Telemetry.startRequest(ThrottleGovernor.EndpointClass.GRAPH,
+                method + " " + path);
+        int attempt = 1;
+        try {
+            for (; attempt <= MAX_ATTEMPTS; attempt++) {
+                governor.acquire(ThrottleGovernor.EndpointClass.GRAPH);
+                HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                        .timeout(Duration.ofMinutes(2))
+                        .header("Authorization", "Bearer " + tokenSupplier.get())
+                        .header("Content-Type", "application/json")
+                        .method(method, body == null
+                                ? HttpRequest.BodyPublishers.noBody()
+                                : HttpRequest.BodyPublishers.ofString(body.toString()))
+                        .build();
+                response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                if (!governor.onResponse(ThrottleGovernor.EndpointClass.GRAPH, response.statusCode(),
+                        response.headers())) {
+                    break;
+                }
+                if (response.statusCode() != 429 && !safeToRepeat) {
+                    break;
+                }
+            }
+        } finally {
+            timer.end(Math.min(attempt, MAX_ATTEMPTS), response != null ? response.statusCode() : 0);
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new GraphApiException("API ERROR [" + method + " " + url + "] HTTP " + response.statusCode() + ": "
+                    + response.body(), response.statusCode());
+        }
+        String text = response.body();
+        return text == null || text.isBlank() ? new JsonObject() : JsonParser.parseString(text).getAsJsonObject();
+    }
+}
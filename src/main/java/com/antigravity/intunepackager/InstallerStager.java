@@ -0,0 +1,151 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Puts an installer into the staging folder without copying it when that can
+ * be avoided. In order of preference:
+ *
+ * <ol>
+ * <li>keep the staged file if it is already current (same file, or same
+ * size, modification time and SHA-256);</li>
+ * <li>hard link it (same volume);</li>
+ * <li>symbolic link it;</li>
+ * <li>copy it with {@link FileChannel#transferTo}, reporting progress.</li>
+ * </ol>
+ *
+ * The packager only ever reads staged files, so linking is safe; a restage
+ * always replaces the link rather than writing through it.
+ *
+ * Known {@link FileDigests} of the source are carried over to the staged
+ * file. A copy of a file whose digests aren't known yet hashes the bytes as
+ * they are copied instead of using transferTo, so nothing has to read the
+ * installer again just to hash it.
+ */
+public class InstallerStager {
+    private static final Logger LOGGER = Logger.getLogger(InstallerStager.class.getName());
+
+    private static final long TRANSFER_CHUNK = 16L * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /** How the installer ended up in the staging folder. */
+    public enum Method {
+        UNCHANGED, HARD_LINK, SYMBOLIC_LINK, COPY
+    }
+
+    /** Receives copy progress; only called when the file is actually copied. */
+    @FunctionalInterface
+    public interface CopyProgressListener {
+        void bytesCopied(long bytesDone, long totalBytes);
+    }
+
+    public Method stage(Path source, Path target, CopyProgressListener listener) throws IOException {
+        if (isCurrent(source, target)) {
+            LOGGER.info("Staged installer " + target.getFileName() + " is up to date");
+            return Method.UNCHANGED;
+        }
+
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+
+        if (Files.getFileStore(source).equals(Files.getFileStore(target.getParent()))) {
+            try {
+                Files.createLink(target, source);
+                carryDigests(source, target);
+                return Method.HARD_LINK;
+            } catch (IOException | UnsupportedOperationException e) {
+                LOGGER.fine("Hard link failed, trying a symbolic link: " + e.getMessage());
+            }
+        }
+        try {
+            // Windows only allows this with Developer Mode or the symlink privilege
+            Files.createSymbolicLink(target, source.toAbsolutePath());
+            carryDigests(source, target);
+            return Method.SYMBOLIC_LINK;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.fine("Symbolic link failed, copying: " + e.getMessage());
+        }
+
+        copy(source, target, listener);
+        return Method.COPY;
+    }
+
+    private static boolean isCurrent(Path source, Path target) throws IOException {
+        if (!Files.exists(target)) {
+            return false;
+        }
+        if (Files.isSymbolicLink(target)) {
+            // A retargeted link is simply recreated
+            return Files.isSameFile(source, target);
+        }
+        if (Files.isSameFile(source, target)) {
+            return true;
+        }
+        if (Files.size(source) != Files.size(target)
+                || !Files.getLastModifiedTime(source).equals(
+                        Files.getLastModifiedTime(target, LinkOption.NOFOLLOW_LINKS))) {
+            return false;
+        }
+        return FileDigests.of(source).getSha256().equals(FileDigests.of(target).getSha256());
+    }
+
+    private static void carryDigests(Path source, Path target) {
+        FileDigests known = FileDigests.lookup(source);
+        if (known != null) {
+            FileDigests.remember(target, known);
+        }
+    }
+
+    static void copy(Path source, Path target, CopyProgressListener listener) throws IOException {
+        Path partial = target.resolveSibling(target.getFileName() + ".partial");
+        FileDigests known = FileDigests.lookup(source);
+        FileDigests.Accumulator accumulator = known == null ? new FileDigests.Accumulator() : null;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            ByteBuffer buffer = accumulator != null ? ByteBuffer.allocateDirect(COPY_BUFFER_SIZE) : null;
+            while (position < size) {
+                long n;
+                if (accumulator == null) {
+                    // transferTo may move fewer bytes than asked; chunking also gives progress ticks
+                    n = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+                } else {
+                    // Digests unknown: hash while the bytes pass through instead of re-reading later
+                    buffer.clear();
+                    n = in.read(buffer, position);
+                    buffer.flip();
+                    accumulator.update(buffer);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                if (n <= 0) {
+                    throw new IOException("Copy of " + source + " stalled at byte " + position);
+                }
+                position += n;
+                if (listener != null) {
+                    listener.bytesCopied(position, size);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        // Same mtime as the source so the next run can recognise the copy as current
+        Files.setLastModifiedTime(partial, Files.getLastModifiedTime(source));
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        FileDigests digests = accumulator != null ? accumulator.finish(source) : known;
+        FileDigests.remember(target, digests);
+    }
+}
@@ -1,57 +1,213 @@
 package com.antigravity.intunepackager;
 
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
 import com.microsoft.graph.models.*;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 public class IntuneUploadService {
 
     private static final Logger LOGGER = Logger.getLogger(IntuneUploadService.class.getName());
+    private static final String LOB_TYPE = "microsoft.graph.win32LobApp";
+    private static final long STORAGE_URI_RENEWAL_MARGIN_SECONDS = 300;
+
+    /** Shared by every upload in the process so connections are reused. */
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+
+    /** One batcher per signed-in tenant, so calls from parallel uploads share $batch round trips. */
+    private static final Map<GraphAuthService, GraphBatcher> BATCHERS = new ConcurrentHashMap<>();
+    private static final AtomicInteger UPLOAD_IDS = new AtomicInteger();
+
     private final GraphServiceClient graphClient;
-    private final GraphAuthService authService;
-    private Consumer<String> statusCallback;
-    private Consumer<Double> progressCallback;
+    private final GraphBatcher graphRest;
+    private final FileStatePoller filePoller;
+    private final SettingsManager settingsManager;
+    private final ProgressBus progressBus;
+    private final String progressSource;
+    private int uploadConcurrency;
+    private int fixedBlockSize;
+    private JobReport report;
 
+    /** Reports on the shared {@link ProgressBus} under a new source; see {@link #getProgressSource()}. */
     public IntuneUploadService(GraphServiceClient graphClient, GraphAuthService authService) {
+        this(graphClient, authService, ProgressBus.getShared(), "upload-" + UPLOAD_IDS.incrementAndGet());
+    }
+
+    public IntuneUploadService(GraphServiceClient graphClient, GraphAuthService authService, ProgressBus progressBus,
+            String progressSource) {
+        this(graphClient, BATCHERS.computeIfAbsent(authService,
+                auth -> new GraphBatcher(new GraphRestClient(HTTP_CLIENT, auth::getAccessToken))), progressBus,
+                progressSource);
+    }
+
+    /**
+     * Talks to Graph through the given clients, e.g. ones pointed at a local
+     * stand-in of the Intune endpoints for load testing.
+     */
+    public IntuneUploadService(GraphServiceClient graphClient, GraphBatcher graphRest, ProgressBus progressBus,
+            String progressSource) {
         this.graphClient = graphClient;
-        this.authService = authService;
+        this.graphRest = graphRest;
+        this.filePoller = new FileStatePoller(graphRest);
+        this.settingsManager = new SettingsManager();
+        this.progressBus = progressBus;
+        this.progressSource = progressSource;
+    }
+
+    /** Most blocks in flight for this service's uploads, instead of the configured setting. */
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = uploadConcurrency;
     }
 
-    public void setStatusCallback(Consumer<String> callback) {
-        this.statusCallback = callback;
+    /**
+     * Uploads in blocks of exactly this size instead of letting the
+     * {@link UploadTuner} adapt block size and concurrency; for comparisons.
+     */
+    public void setFixedBlockSize(int fixedBlockSize) {
+        this.fixedBlockSize = fixedBlockSize;
     }
 
-    public void setProgressCallback(Consumer<Double> callback) {
-        this.progressCallback = callback;
+    /** Source name of this upload's events on its {@link ProgressBus}. */
+    public String getProgressSource() {
+        return progressSource;
     }
 
     private void updateStatus(String msg) {
         LOGGER.info(msg);
-        if (statusCallback != null)
-            statusCallback.accept(msg);
+        progressBus.status(progressSource, msg);
     }
 
     private void updateProgress(double progress) {
-        if (progressCallback != null)
-            progressCallback.accept(progress);
+        progressBus.progress(progressSource, progress);
     }
 
     /**
-     * Uploads a .intunewin package to Intune by creating metadata object in Java
-     * and delegating the complex binary upload and linkage handshake to PowerShell.
+     * Uploads a .intunewin package to Intune: creates the app metadata, uploads
+     * the encrypted payload to Azure Storage in parallel blocks and commits it.
+     *
+     * Progress is journaled next to the package; calling this again after a
+     * failure resumes the same app and only sends the blocks still missing.
+     * Status, progress and the outcome are published on the service's
+     * {@link ProgressBus}.
      */
     public void uploadIntunewin(File intunewinFile, PackageDetails details) throws Exception {
-        updateStatus("Initializing Intune upload via robust PowerShell engine...");
+        report = new JobReport("upload", details.getAppName());
+        try {
+            upload(intunewinFile, details);
+        } catch (Exception e) {
+            progressBus.failed(progressSource, e.getMessage() != null ? e.getMessage() : e.toString());
+            throw e;
+        } finally {
+            try {
+                report.write(intunewinFile.getAbsoluteFile().getParentFile().toPath());
+            } catch (Exception e) {
+                LOGGER.warning("Could not write " + report.getFileName() + ": " + e.getMessage());
+            }
+        }
+        progressBus.succeeded(progressSource, "Intune Deployment Successful! App is now Ready.");
+    }
+
+    private void upload(File intunewinFile, PackageDetails details) throws Exception {
+        updateStatus("Initializing Intune upload...");
         updateProgress(0.05);
 
+        // Open the package in place: Detection.xml is streamed and the
+        // encrypted payload is uploaded straight from its stored zip entry.
+        updateStatus("Reading encryption manifest from package...");
+        try (IntunewinArchive archive = IntunewinArchive.open(intunewinFile.toPath())) {
+            String detailsHash = appDetailsHash(intunewinFile, details);
+            UploadJournal journal = resumableJournal(UploadJournal.open(intunewinFile.toPath(), archive),
+                    intunewinFile, archive, detailsHash);
+            try {
+                String appId = journal.getAppId();
+                if (appId == null) {
+                    appId = Telemetry.time(report, "metadata", span -> createApp(intunewinFile, details));
+                    journal.setAppId(appId);
+                    journal.setAppDetailsHash(detailsHash);
+                    journal.save();
+                } else {
+                    updateStatus("Resuming previous upload of APP_ID: " + appId);
+                }
+                updateProgress(0.15);
+
+                uploadContent(appId, archive, journal);
+            } catch (Exception e) {
+                if (journal.isResume()) {
+                    updateStatus("Upload interrupted. Progress was saved; upload again to resume.");
+                }
+                throw e;
+            }
+            journal.delete();
+        }
+
+        LOGGER.info("Intune Deployment Successful! App is now Ready.");
+    }
+
+    /**
+     * The journal to continue with: a fresh one if the app it would resume
+     * was created from different details (edited since the failed upload)
+     * or has been deleted in Intune, otherwise {@code journal} itself.
+     */
+    private UploadJournal resumableJournal(UploadJournal journal, File intunewinFile, IntunewinArchive archive,
+            String detailsHash) throws Exception {
+        if (!journal.isResume()) {
+            return journal;
+        }
+        String appId = journal.getAppId();
+        String reason = null;
+        if (!detailsHash.equals(journal.getAppDetailsHash())) {
+            reason = "App details changed since the interrupted upload of APP_ID: " + appId
+                    + "; creating a new app (the old one can be deleted in Intune)";
+        } else {
+            try {
+                graphRest.get("/deviceAppManagement/mobileApps/" + appId);
+            } catch (GraphApiException e) {
+                if (e.getStatus() != 404) {
+                    throw e;
+                }
+                reason = "APP_ID: " + appId + " from the interrupted upload no longer exists; starting over";
+            }
+        }
+        if (reason == null) {
+            return journal;
+        }
+        updateStatus(reason);
+        journal.delete();
+        return UploadJournal.open(intunewinFile.toPath(), archive);
+    }
+
+    /** Hashes every detail {@link #createApp} puts into the app. */
+    static String appDetailsHash(File intunewinFile, PackageDetails details) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String value : new String[] { intunewinFile.getName(), details.getAppName(), details.getPublisher(),
+                details.getVersion(), details.getInstallCmd(), details.getUninstallCmd(),
+                details.getDetectionScript() }) {
+            digest.update((value != null ? value : "").getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private String createApp(File intunewinFile, PackageDetails details) {
         // 1. Create the App Entry (Java SDK is fine for this part)
         updateStatus("Preparing application metadata object...");
         Win32LobApp app = new Win32LobApp();
@@ -107,61 +263,162 @@ public class IntuneUploadService {
         MobileApp createdApp = graphClient.deviceAppManagement().mobileApps().post(app);
         String appId = createdApp.getId();
         updateStatus("Metadata synced! APP_ID: " + appId);
-        updateProgress(0.15);
-
-        // 2. Delegate the binary upload and complex linkage to PowerShell
-        updateStatus("Extracting token and handing off to PowerShell...");
-        String accessToken = authService.getAccessToken();
-
-        // Robust path resolution for the PowerShell script (works in IDE and as
-        // installed app)
-        String appPath = MainApp.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
-        File appDir = new File(appPath).getParentFile();
-        File scriptFile = new File(appDir, "IntuneUpload.ps1");
-
-        // Fallback for execution from project root (IDE)
-        if (!scriptFile.exists()) {
-            scriptFile = new File("IntuneUpload.ps1");
-        }
-
-        updateStatus("Using script at: " + scriptFile.getAbsolutePath());
-
-        java.lang.ProcessBuilder pb = new java.lang.ProcessBuilder(
-                "powershell.exe", "-ExecutionPolicy", "Bypass", "-File", scriptFile.getAbsolutePath(),
-                "-AccessToken", accessToken,
-                "-IntunewinFile", intunewinFile.getAbsolutePath(),
-                "-AppId", appId,
-                "-AppName", details.getAppName(),
-                "-Publisher", details.getPublisher(),
-                "-Version", details.getVersion(),
-                "-Description", details.getDescription());
-        pb.redirectErrorStream(true);
-
-        java.lang.Process process = pb.start();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("STATUS: ")) {
-                    updateStatus(line.substring(8));
-                } else if (line.contains("PROGRESS: ")) {
-                    try {
-                        String pStr = line.split("PROGRESS: ")[1].split("%")[0];
-                        updateProgress(0.15 + (0.85 * (Double.parseDouble(pStr) / 100.0)));
-                    } catch (Exception ignored) {
-                    }
-                } else if (line.startsWith("ERROR: ")) {
-                    updateStatus("PowerShell Fault: " + line.substring(7));
-                }
-                LOGGER.info("[PowerShell Engine] " + line);
+        return appId;
+    }
+
+    /**
+     * Creates the content version and file entry, pushes the encrypted payload
+     * to Azure Storage, commits it and links it to the app.
+     */
+    private void uploadContent(String appId, IntunewinArchive archive, UploadJournal journal) throws Exception {
+        String appPath = "/deviceAppManagement/mobileApps/" + appId + "/" + LOB_TYPE;
+        IntunewinManifest manifest = archive.getManifest();
+        long encryptedSize = archive.getContentLength();
+        updateStatus("Unencrypted size: " + manifest.getUnencryptedContentSize() + " bytes, Encrypted content size: "
+                + encryptedSize + " bytes");
+
+        if (journal.getContentVersionId() == null) {
+            updateStatus("Creating content version container...");
+            Telemetry.run(report, "content-version", span -> {
+                journal.setContentVersionId(graphRest.post(appPath + "/contentVersions", new JsonObject())
+                        .get("id").getAsString());
+                journal.save();
+            });
+        }
+        String contentVersionId = journal.getContentVersionId();
+        updateStatus("Content version: " + contentVersionId);
+
+        String filesPath = appPath + "/contentVersions/" + contentVersionId + "/files";
+        if (journal.getFileId() == null) {
+            updateStatus("Requesting Azure Storage upload URI...");
+            JsonObject fileBody = new JsonObject();
+            fileBody.addProperty("@odata.type", "#microsoft.graph.mobileAppContentFile");
+            fileBody.addProperty("name", manifest.getFileName());
+            fileBody.addProperty("size", manifest.getUnencryptedContentSize());
+            fileBody.addProperty("sizeEncrypted", encryptedSize);
+            fileBody.add("manifest", JsonNull.INSTANCE);
+            Telemetry.run(report, "file-entry", span -> {
+                journal.setFileId(graphRest.post(filesPath, fileBody).get("id").getAsString());
+                journal.save();
+            });
+        }
+        String fileStatusPath = filesPath + "/" + journal.getFileId();
+
+        if (journal.isBlocksCommitted() && !journal.isFileCommitted()) {
+            JsonObject file = graphRest.get(fileStatusPath);
+            if ("commitFileSuccess".equals(stringOrEmpty(file, "uploadState"))) {
+                journal.setFileCommitted(true);
+                journal.save();
             }
         }
 
-        int exitCode = process.waitFor();
-        if (exitCode != 0) {
-            throw new Exception("PowerShell execution failed (Exit Code: " + exitCode + ")");
+        if (!journal.isBlocksCommitted()) {
+            Telemetry.run(report, "storage-uri", span -> ensureStorageUri(fileStatusPath, journal));
+            updateProgress(0.2);
+
+            int maxInFlight = uploadConcurrency > 0 ? uploadConcurrency : settingsManager.getUploadConcurrency();
+            UploadTuner tuner = fixedBlockSize > 0 ? UploadTuner.fixed(fixedBlockSize, maxInFlight)
+                    : UploadTuner.adaptive(maxInFlight, encryptedSize);
+            BlockBlobUploader uploader = new BlockBlobUploader(HTTP_CLIENT, tuner);
+            uploader.setJobReport(report);
+            // Checks the payload against Detection.xml's Mac on another core while the blocks go out
+            uploader.setVerification(ContentVerifier.verifyAsync(archive, report));
+            List<BlockBlobUploader.Block> done = journal.getAcknowledgedBlocks();
+            updateStatus("Uploading encrypted content to Azure Storage (up to " + maxInFlight + " blocks in flight"
+                    + (done.isEmpty() ? "" : ", " + done.size() + " blocks already uploaded") + ")...");
+            long resumedBytes = Math.min(encryptedSize, journal.getAcknowledgedBytes());
+            Telemetry.run(report, "block-upload", span -> {
+                span.bytes(encryptedSize - resumedBytes);
+                try {
+                    uploader.upload(journal.getStorageUri(), archive.getPath(), archive.getContentOffset(),
+                            encryptedSize, done, (block, bytesDone, total) -> {
+                                journal.markBlockAcknowledged(block);
+                                // Per-block detail travels with the (coalesced) progress, not as a status line each
+                                progressBus.progress(progressSource, 0.2 + 0.7 * bytesDone / total, String.format(
+                                        "Uploaded %.1f%% (%s)", 100.0 * bytesDone / total, tuner.describeSettings()));
+                            });
+                } finally {
+                    span.detail(tuner.describe());
+                }
+            });
+            updateStatus("Block upload finished (" + tuner.describe() + ")");
+            journal.setBlocksCommitted(true);
+            journal.save();
+        }
+
+        if (!journal.isFileCommitted()) {
+            updateStatus("Committing encrypted content to Intune...");
+            JsonObject commitBody = new JsonObject();
+            commitBody.add("fileEncryptionInfo", manifest.toFileEncryptionInfo());
+            Telemetry.run(report, "commit", span -> graphRest.post(fileStatusPath + "/commit", commitBody));
+
+            updateStatus("Polling for commit verification (commitFileSuccess)...");
+            Telemetry.run(report, "commit-poll", span -> waitForFileState(fileStatusPath, "commitFileSuccess"));
+            journal.setFileCommitted(true);
+            journal.save();
+        }
+        updateProgress(0.95);
+
+        updateStatus("Linking app to content version...");
+        JsonObject patch = new JsonObject();
+        patch.addProperty("@odata.type", "#" + LOB_TYPE);
+        patch.addProperty("committedContentVersion", contentVersionId);
+
+        // PATCH and read-back in one round trip; the GET only runs after the PATCH succeeded
+        String appUrl = "/deviceAppManagement/mobileApps/" + appId;
+        String committed = Telemetry.time(report, "link", span -> {
+            GraphBatcher.Batch link = graphRest.newBatch();
+            CompletableFuture<JsonObject> patched = link.add("link", "PATCH", appUrl, patch);
+            CompletableFuture<JsonObject> app = link.add("verify", "GET", appUrl, null, "link");
+            link.execute();
+            GraphBatcher.await(patched);
+            return stringOrEmpty(GraphBatcher.await(app), "committedContentVersion");
+        });
+        if (!committed.isEmpty() && !committed.equals(contentVersionId)) {
+            throw new Exception("App still points at content version " + committed + " instead of "
+                    + contentVersionId);
+        }
+    }
+
+    /**
+     * Makes sure the journal holds a usable SAS URI: waits for the first one,
+     * or asks Intune to renew it when it has expired (the blob, and with it
+     * every uncommitted block, stays the same).
+     */
+    private void ensureStorageUri(String fileStatusPath, UploadJournal journal) throws Exception {
+        if (journal.getStorageUri() == null) {
+            updateStatus("Waiting for Azure Storage URI allocation...");
+            JsonObject file = waitForFileState(fileStatusPath, "azureStorageUriRequestSuccess");
+            journal.setStorageUri(file.get("azureStorageUri").getAsString(),
+                    stringOrEmpty(file, "azureStorageUriExpirationDateTime"));
+            journal.resetBlocks();
+            journal.save();
+            updateStatus("Storage URI received.");
+        } else if (journal.isStorageUriExpiring(STORAGE_URI_RENEWAL_MARGIN_SECONDS)) {
+            updateStatus("Storage URI expired, requesting renewal...");
+            graphRest.post(fileStatusPath + "/renewUpload", new JsonObject());
+            JsonObject file = waitForFileState(fileStatusPath, "azureStorageUriRenewalSuccess");
+            journal.setStorageUri(file.get("azureStorageUri").getAsString(),
+                    stringOrEmpty(file, "azureStorageUriExpirationDateTime"));
+            journal.save();
+            updateStatus("Storage URI renewed.");
         }
+    }
+
+    private static String stringOrEmpty(JsonObject object, String member) {
+        return object.has(member) && !object.get(member).isJsonNull() ? object.get(member).getAsString() : "";
+    }
 
-        updateStatus("Intune Deployment Successful! App is now Ready.");
-        updateProgress(1.0);
+    private JsonObject waitForFileState(String fileStatusPath, String targetState) throws Exception {
+        CompletableFuture<JsonObject> ready = filePoller.await(fileStatusPath, targetState,
+                FileStatePoller.DEFAULT_TIMEOUT, state -> updateStatus("File state: " + state));
+        try {
+            return ready.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } catch (InterruptedException e) {
+            ready.cancel(false);
+            throw e;
+        }
     }
 }
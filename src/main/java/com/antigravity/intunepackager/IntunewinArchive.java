@@ -0,0 +1,290 @@
+package com.antigravity.intunepackager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only view of an .intunewin file that never extracts anything to disk.
+ *
+ * The central directory is parsed directly so the absolute file offset of the
+ * stored (uncompressed) encrypted payload is known; uploaders can then read
+ * block ranges from the archive with positional {@link FileChannel} reads.
+ * Detection.xml is streamed out of the archive and parsed with StAX.
+ */
+public class IntunewinArchive implements Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final long MAGIC_32 = 0xFFFFFFFFL;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final IntunewinManifest manifest;
+    private final Entry contentEntry;
+    private final long contentOffset;
+
+    /** A single entry from the central directory. */
+    public static class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSimpleName() {
+            return name.substring(name.lastIndexOf('/') + 1);
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private IntunewinArchive(Path path) throws Exception {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.entries = readCentralDirectory();
+
+            Entry detection = find("Detection.xml");
+            if (detection == null) {
+                throw new IOException("Could not find Detection.xml in the .intunewin package.");
+            }
+            try (InputStream in = openStream(detection)) {
+                this.manifest = IntunewinManifest.parse(in);
+            }
+
+            Entry content = find(manifest.getFileName());
+            if (content == null) {
+                throw new IOException("Could not find encrypted content file '" + manifest.getFileName()
+                        + "' in the .intunewin package.");
+            }
+            if (content.method != 0) {
+                throw new IOException("Encrypted content '" + content.name
+                        + "' is compressed inside the archive; only stored entries can be streamed.");
+            }
+            this.contentEntry = content;
+            this.contentOffset = dataOffset(content);
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static IntunewinArchive open(Path path) throws Exception {
+        return new IntunewinArchive(path);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public IntunewinManifest getManifest() {
+        return manifest;
+    }
+
+    /** Absolute file offset of the first byte of the encrypted payload. */
+    public long getContentOffset() {
+        return contentOffset;
+    }
+
+    /** Size of the encrypted payload (HMAC + IV + ciphertext). */
+    public long getContentLength() {
+        return contentEntry.size;
+    }
+
+    public Entry find(String simpleName) {
+        for (Entry e : entries) {
+            if (!e.name.endsWith("/") && e.getSimpleName().equals(simpleName)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** Streams an entry's uncompressed bytes straight from the archive. */
+    public InputStream openStream(Entry entry) throws IOException {
+        InputStream raw = Channels.newInputStream(new RangeChannel(dataOffset(entry), entry.compressedSize));
+        if (entry.method == 0) {
+            return raw;
+        }
+        if (entry.method == 8) {
+            return new InflaterInputStream(raw, new Inflater(true), 8192);
+        }
+        throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long dataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, 30);
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw new IOException("Corrupt local header for " + entry.name);
+        }
+        int nameLength = Short.toUnsignedInt(header.getShort(26));
+        int extraLength = Short.toUnsignedInt(header.getShort(28));
+        return entry.localHeaderOffset + 30 + nameLength + extraLength;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        int tailLength = (int) Math.min(fileSize, 22 + 0xFFFF);
+        ByteBuffer tail = read(fileSize - tailLength, tailLength);
+
+        int eocd = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a valid .intunewin (zip) file: " + path);
+        }
+
+        long entryCount = Short.toUnsignedLong(tail.getShort(eocd + 10));
+        long cdSize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+        long cdOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+
+        if (eocd >= 20 && tail.getInt(eocd - 20) == ZIP64_LOCATOR_SIGNATURE) {
+            long zip64EocdOffset = tail.getLong(eocd - 20 + 8);
+            ByteBuffer zip64 = read(zip64EocdOffset, 56);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Corrupt Zip64 end of central directory in " + path);
+            }
+            entryCount = zip64.getLong(32);
+            cdSize = zip64.getLong(40);
+            cdOffset = zip64.getLong(48);
+        }
+
+        if (cdSize > Integer.MAX_VALUE) {
+            throw new IOException("Central directory too large in " + path);
+        }
+        ByteBuffer cd = read(cdOffset, (int) cdSize);
+        List<Entry> result = new ArrayList<>();
+        int pos = 0;
+        for (long n = 0; n < entryCount; n++) {
+            if (cd.getInt(pos) != CENTRAL_SIGNATURE) {
+                throw new IOException("Corrupt central directory in " + path);
+            }
+            int method = Short.toUnsignedInt(cd.getShort(pos + 10));
+            long compressed = Integer.toUnsignedLong(cd.getInt(pos + 20));
+            long size = Integer.toUnsignedLong(cd.getInt(pos + 24));
+            int nameLength = Short.toUnsignedInt(cd.getShort(pos + 28));
+            int extraLength = Short.toUnsignedInt(cd.getShort(pos + 30));
+            int commentLength = Short.toUnsignedInt(cd.getShort(pos + 32));
+            long localOffset = Integer.toUnsignedLong(cd.getInt(pos + 42));
+
+            byte[] nameBytes = new byte[nameLength];
+            cd.get(pos + 46, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // Zip64 extended information: only the fields that overflowed are present, in this order.
+            int extra = pos + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = Short.toUnsignedInt(cd.getShort(extra));
+                int len = Short.toUnsignedInt(cd.getShort(extra + 2));
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (size == MAGIC_32) {
+                        size = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressed == MAGIC_32) {
+                        compressed = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (localOffset == MAGIC_32) {
+                        localOffset = cd.getLong(field);
+                    }
+                }
+                extra += 4 + len;
+            }
+
+            result.add(new Entry(name, method, compressed, size, localOffset));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file in " + path);
+            }
+        }
+        return buffer.flip();
+    }
+
+    /** Exposes [start, start + length) of the archive as a readable channel. */
+    private class RangeChannel implements ReadableByteChannel {
+        private long position;
+        private final long end;
+
+        RangeChannel(long start, long length) {
+            this.position = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > end - position) {
+                dst.limit(dst.position() + (int) (end - position));
+            }
+            int n = channel.read(dst, position);
+            dst.limit(limit);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The archive owns the channel
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.JsonObject;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * The parts of an .intunewin package's Detection.xml that the upload needs.
+ */
+public class IntunewinManifest {
+
+    private String fileName;
+    private long unencryptedContentSize;
+    private String encryptionKey;
+    private String macKey;
+    private String initializationVector;
+    private String mac;
+    private String profileIdentifier;
+    private String fileDigest;
+    private String fileDigestAlgorithm;
+
+    /**
+     * Parses Detection.xml with a streaming (StAX) reader; the document is
+     * never materialised as a DOM.
+     */
+    public static IntunewinManifest parse(InputStream detectionXml) throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        IntunewinManifest manifest = new IntunewinManifest();
+        String unencryptedSize = null;
+        XMLStreamReader reader = factory.createXMLStreamReader(detectionXml);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "FileName" -> manifest.fileName = reader.getElementText().trim();
+                    case "UnencryptedContentSize" -> unencryptedSize = reader.getElementText().trim();
+                    case "EncryptionKey" -> manifest.encryptionKey = reader.getElementText().trim();
+                    case "MacKey" -> manifest.macKey = reader.getElementText().trim();
+                    case "InitializationVector" -> manifest.initializationVector = reader.getElementText().trim();
+                    case "Mac" -> manifest.mac = reader.getElementText().trim();
+                    case "ProfileIdentifier" -> manifest.profileIdentifier = reader.getElementText().trim();
+                    case "FileDigest" -> manifest.fileDigest = reader.getElementText().trim();
+                    case "FileDigestAlgorithm" -> manifest.fileDigestAlgorithm = reader.getElementText().trim();
+                    default -> {
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        require(manifest.fileName, "FileName");
+        require(unencryptedSize, "UnencryptedContentSize");
+        require(manifest.encryptionKey, "EncryptionKey");
+        require(manifest.macKey, "MacKey");
+        require(manifest.initializationVector, "InitializationVector");
+        require(manifest.mac, "Mac");
+        require(manifest.fileDigest, "FileDigest");
+        require(manifest.fileDigestAlgorithm, "FileDigestAlgorithm");
+        manifest.unencryptedContentSize = Long.parseLong(unencryptedSize);
+        return manifest;
+    }
+
+    private static void require(String value, String tag) throws Exception {
+        if (value == null) {
+            throw new Exception("Detection.xml is missing <" + tag + ">");
+        }
+    }
+
+    /** The fileEncryptionInfo object expected by the Graph commit call. */
+    public JsonObject toFileEncryptionInfo() {
+        JsonObject info = new JsonObject();
+        info.addProperty("encryptionKey", encryptionKey);
+        info.addProperty("macKey", macKey);
+        info.addProperty("initializationVector", initializationVector);
+        info.addProperty("mac", mac);
+        info.addProperty("fileDigest", fileDigest);
+        info.addProperty("fileDigestAlgorithm", fileDigestAlgorithm);
+        info.addProperty("profileIdentifier", profileIdentifier != null ? profileIdentifier : "ProfileVersion1");
+        return info;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getUnencryptedContentSize() {
+        return unencryptedContentSize;
+    }
+
+    public String getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    public String getMacKey() {
+        return macKey;
+    }
+
+    public String getInitializationVector() {
+        return initializationVector;
+    }
+
+    public String getMac() {
+        return mac;
+    }
+
+    public String getFileDigest() {
+        return fileDigest;
+    }
+}
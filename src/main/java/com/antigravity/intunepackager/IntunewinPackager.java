@@ -0,0 +1,747 @@
+package com.antigravity.intunepackager;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Builds .intunewin packages without IntuneWinAppUtil.exe.
+ *
+ * The staging folder is read exactly once: every file is deflated into the
+ * inner zip, which is hashed (SHA-256), AES-256-CBC encrypted and HMAC-SHA256
+ * signed on the fly while it is written straight into the stored entry of the
+ * outer archive. A file already deflated ahead of time
+ * ({@link PrecompressedFile}) is copied into the inner zip as it is instead.
+ * Only the 32 byte HMAC and the entry header are patched in afterwards, so
+ * heap usage does not depend on the package size.
+ *
+ * Layout of the produced file (same as the Microsoft tool):
+ *
+ * <pre>
+ * IntuneWinPackage/Contents/IntunePackage.intunewin   [HMAC(32)][IV(16)][AES-CBC ciphertext]
+ * IntuneWinPackage/Metadata/Detection.xml             encryption info and sizes
+ * </pre>
+ */
+public class IntunewinPackager {
+
+    /** Reported as ToolVersion in Detection.xml; bump when the output format changes. */
+    public static final String PACKAGER_VERSION = "1.8.6.0";
+
+    public static final String CONTENT_ENTRY = "IntuneWinPackage/Contents/IntunePackage.intunewin";
+    public static final String DETECTION_ENTRY = "IntuneWinPackage/Metadata/Detection.xml";
+    public static final String CONTENT_FILE_NAME = "IntunePackage.intunewin";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int HMAC_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+    private static final long PROGRESS_INTERVAL = 8L * 1024 * 1024;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /** Progress of the single read pass over the staging folder. */
+    public interface ProgressListener {
+        void bytesPacked(long done, long total);
+    }
+
+    /**
+     * Packages the staging directory into {@code <setupFile base name>.intunewin}
+     * inside outputDir.
+     *
+     * @return the path of the created package.
+     */
+    public Path createPackage(Path stagingDir, String setupFile, Path outputDir) throws Exception {
+        return createPackage(stagingDir, setupFile, outputDir, null);
+    }
+
+    /**
+     * Same as {@link #createPackage(Path, String, Path)}, reporting how many
+     * bytes of the staged files have been packed. Stops with an
+     * {@link InterruptedIOException} if the thread is interrupted.
+     */
+    public Path createPackage(Path stagingDir, String setupFile, Path outputDir, ProgressListener listener)
+            throws Exception {
+        if (!Files.isRegularFile(stagingDir.resolve(setupFile))) {
+            throw new Exception("Setup file not found in staging directory: " + setupFile);
+        }
+        Files.createDirectories(outputDir);
+
+        String baseName = setupFile.contains(".") ? setupFile.substring(0, setupFile.lastIndexOf('.')) : setupFile;
+        Path target = outputDir.resolve(baseName + ".intunewin");
+        Path partial = outputDir.resolve(baseName + ".intunewin.partial");
+
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256, random);
+        SecretKey encryptionKey = keyGen.generateKey();
+        SecretKey macKey = keyGen.generateKey();
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ZipChannelWriter zip = new ZipChannelWriter(channel);
+
+            // --- Encrypted content (stored entry, streamed) ---
+            long dataStart = zip.beginStoredEntry(CONTENT_ENTRY);
+            channel.write(ByteBuffer.allocate(HMAC_LENGTH), dataStart); // HMAC placeholder
+            channel.position(dataStart + HMAC_LENGTH);
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            MessageDigest fileDigest = MessageDigest.getInstance("SHA-256");
+
+            SigningOutputStream signed = new SigningOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), mac);
+            signed.write(iv);
+            DigestingOutputStream plain;
+            try (CipherOutputStream encrypted = new CipherOutputStream(signed, cipher)) {
+                plain = new DigestingOutputStream(encrypted, fileDigest);
+                writeInnerZip(stagingDir, plain, listener);
+            }
+
+            byte[] hmac = mac.doFinal();
+            channel.write(ByteBuffer.wrap(hmac), dataStart);
+            CRC32 hmacCrc = new CRC32();
+            hmacCrc.update(hmac);
+            long crc = Crc32Combine.combine(hmacCrc.getValue(), signed.crc.getValue(), signed.count);
+            zip.endStoredEntry(crc, HMAC_LENGTH + signed.count);
+
+            // --- Detection.xml ---
+            String detectionXml = buildDetectionXml(setupFile, plain.count, encryptionKey.getEncoded(),
+                    macKey.getEncoded(), iv, hmac, fileDigest.digest());
+            zip.writeSmallEntry(DETECTION_ENTRY, detectionXml.getBytes(StandardCharsets.UTF_8));
+
+            zip.finish();
+        } catch (Exception e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    private void writeInnerZip(Path stagingDir, OutputStream out, ProgressListener listener) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(stagingDir)) {
+            walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+        }
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        long packed = 0;
+        long reported = 0;
+
+        InnerZipWriter zip = new InnerZipWriter(new BufferedOutputStream(new NonClosingOutputStream(out), BUFFER_SIZE));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (Path file : files) {
+            String name = stagingDir.relativize(file).toString().replace('\\', '/');
+            long size = Files.size(file);
+            FileTime modified = Files.getLastModifiedTime(file);
+
+            // Deflated ahead of time (speculative packaging): copy the compressed bytes as they are
+            PrecompressedFile precompressed = PrecompressedFile.acquire(FileDigests.lookup(file));
+            try {
+                // Null if the data went missing; the file is then deflated below after all
+                InputStream data = precompressed != null ? precompressed.open() : null;
+                if (data != null) {
+                    zip.beginEntry(name, modified, precompressed.getCrc(), precompressed.getCompressedSize(), size);
+                    try (InputStream in = data) {
+                        long copied = 0;
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                throw new InterruptedIOException("Packaging cancelled");
+                            }
+                            zip.writeRaw(buffer, 0, read);
+                            copied += read;
+                            // In floating point: copied * size overflows a long for installers over about 3 GB
+                            long done = packed
+                                    + (long) ((double) copied / Math.max(1, precompressed.getCompressedSize()) * size);
+                            if (listener != null && done - reported >= PROGRESS_INTERVAL) {
+                                listener.bytesPacked(done, total);
+                                reported = done;
+                            }
+                        }
+                        if (copied != precompressed.getCompressedSize()) {
+                            throw new IOException("Precompressed data of " + name + " changed while packaging");
+                        }
+                    }
+                    zip.closeEntry();
+                    packed += size;
+                    continue;
+                }
+            } finally {
+                if (precompressed != null) {
+                    // Lets a speculation discarded meanwhile delete its data
+                    precompressed.release();
+                }
+            }
+
+            zip.beginDeflatedEntry(name, modified, size);
+            // Hash the file on this pass unless its digests are already known (see FileDigests)
+            boolean hash = FileDigests.lookup(file) == null;
+            try (InputStream raw = Files.newInputStream(file);
+                    InputStream in = hash ? new FileDigests.DigestingInputStream(raw) : raw) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Packaging cancelled");
+                    }
+                    zip.write(buffer, 0, read);
+                    packed += read;
+                    if (listener != null && packed - reported >= PROGRESS_INTERVAL) {
+                        listener.bytesPacked(packed, total);
+                        reported = packed;
+                    }
+                }
+                if (hash) {
+                    ((FileDigests.DigestingInputStream) in).getAccumulator().finish(file);
+                }
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+        if (listener != null) {
+            listener.bytesPacked(total, total);
+        }
+    }
+
+    private String buildDetectionXml(String setupFile, long unencryptedSize, byte[] encryptionKey, byte[] macKey,
+            byte[] iv, byte[] mac, byte[] fileDigest) {
+        Base64.Encoder b64 = Base64.getEncoder();
+        return "<ApplicationInfo xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" "
+                + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ToolVersion=\"" + PACKAGER_VERSION + "\">\r\n"
+                + "  <Name>" + escapeXml(setupFile) + "</Name>\r\n"
+                + "  <UnencryptedContentSize>" + unencryptedSize + "</UnencryptedContentSize>\r\n"
+                + "  <FileName>" + CONTENT_FILE_NAME + "</FileName>\r\n"
+                + "  <SetupFile>" + escapeXml(setupFile) + "</SetupFile>\r\n"
+                + "  <EncryptionInfo>\r\n"
+                + "    <EncryptionKey>" + b64.encodeToString(encryptionKey) + "</EncryptionKey>\r\n"
+                + "    <MacKey>" + b64.encodeToString(macKey) + "</MacKey>\r\n"
+                + "    <InitializationVector>" + b64.encodeToString(iv) + "</InitializationVector>\r\n"
+                + "    <Mac>" + b64.encodeToString(mac) + "</Mac>\r\n"
+                + "    <ProfileIdentifier>ProfileVersion1</ProfileIdentifier>\r\n"
+                + "    <FileDigest>" + b64.encodeToString(fileDigest) + "</FileDigest>\r\n"
+                + "    <FileDigestAlgorithm>SHA256</FileDigestAlgorithm>\r\n"
+                + "  </EncryptionInfo>\r\n"
+                + "</ApplicationInfo>";
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /** Feeds every byte into the SHA-256 file digest and counts the unencrypted size. */
+    private static class DigestingOutputStream extends FilterOutputStream {
+        private final MessageDigest digest;
+        long count;
+
+        DigestingOutputStream(OutputStream out, MessageDigest digest) {
+            super(out);
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            digest.update((byte) b);
+            count++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            count += len;
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Sits below the cipher: signs IV + ciphertext and tracks the CRC and length
+     * of everything after the HMAC slot. Does not close the underlying channel.
+     */
+    private static class SigningOutputStream extends FilterOutputStream {
+        private final Mac mac;
+        final CRC32 crc = new CRC32();
+        long count;
+
+        SigningOutputStream(OutputStream out, Mac mac) {
+            super(out);
+            this.mac = mac;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mac.update(b, off, len);
+            crc.update(b, off, len);
+            count += len;
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Streaming zip writer for the inner archive. Entries are either deflated
+     * on the fly (sizes and CRC follow in a data descriptor) or copied from
+     * raw deflate data whose sizes and CRC are known up front. Zip64 fields
+     * are used only for entries, offsets or directories that need them.
+     */
+    static class InnerZipWriter {
+        private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+        // Deflate can grow incompressible data slightly; leave room when the size is only known afterwards
+        private static final long STREAMED_ZIP64_THRESHOLD = 0xF0000000L;
+
+        private final OutputStream out;
+        private final List<InnerEntry> entries = new ArrayList<>();
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final byte[] deflated = new byte[BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+        private InnerEntry current;
+        private long position;
+
+        InnerZipWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        /** Starts an entry whose data is written with {@link #write} and deflated here. */
+        void beginDeflatedEntry(String name, FileTime modified, long size) throws IOException {
+            current = new InnerEntry(name, modified, position);
+            current.streamed = true;
+            current.zip64 = size >= STREAMED_ZIP64_THRESHOLD;
+            writeLocalHeader(current);
+            deflater.reset();
+            crc.reset();
+        }
+
+        /** Starts an entry whose raw deflate data is written with {@link #writeRaw}. */
+        void beginEntry(String name, FileTime modified, long crc, long compressedSize, long size) throws IOException {
+            current = new InnerEntry(name, modified, position);
+            current.crc = crc;
+            current.compressedSize = compressedSize;
+            current.size = size;
+            current.zip64 = size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT;
+            writeLocalHeader(current);
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            current.size += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                writeDeflated();
+            }
+        }
+
+        void writeRaw(byte[] b, int off, int len) throws IOException {
+            writeRawBytes(b, off, len);
+        }
+
+        void closeEntry() throws IOException {
+            if (current.streamed) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    writeDeflated();
+                }
+                current.crc = crc.getValue();
+                current.compressedSize = current.deflatedBytes;
+                if (!current.zip64 && (current.size >= ZIP64_LIMIT || current.compressedSize >= ZIP64_LIMIT)) {
+                    throw new IOException(current.name + " grew past the Zip64 threshold while being compressed");
+                }
+                ByteBuffer descriptor = le(current.zip64 ? 24 : 16);
+                descriptor.putInt(0x08074b50).putInt((int) current.crc);
+                if (current.zip64) {
+                    descriptor.putLong(current.compressedSize).putLong(current.size);
+                } else {
+                    descriptor.putInt((int) current.compressedSize).putInt((int) current.size);
+                }
+                writeBuffer(descriptor);
+            } else if (position - current.dataOffset != current.compressedSize) {
+                throw new IOException("Wrote " + (position - current.dataOffset) + " bytes for " + current.name
+                        + ", expected " + current.compressedSize);
+            }
+            entries.add(current);
+            current = null;
+        }
+
+        void finish() throws IOException {
+            deflater.end();
+            long cdStart = position;
+            for (InnerEntry e : entries) {
+                byte[] nameBytes = e.name.getBytes(StandardCharsets.UTF_8);
+                boolean bigOffset = e.offset >= ZIP64_LIMIT;
+                boolean zip64 = e.zip64 || bigOffset;
+                int extraLength = zip64 ? 4 + (e.zip64 ? 16 : 0) + (bigOffset ? 8 : 0) : 0;
+
+                ByteBuffer cd = le(46 + nameBytes.length + extraLength);
+                cd.putInt(0x02014b50).putShort((short) 45).putShort((short) (zip64 ? 45 : 20))
+                        .putShort(e.flags()).putShort((short) 8).putInt(e.dosTime)
+                        .putInt((int) e.crc)
+                        .putInt(e.zip64 ? 0xFFFFFFFF : (int) e.compressedSize)
+                        .putInt(e.zip64 ? 0xFFFFFFFF : (int) e.size)
+                        .putShort((short) nameBytes.length).putShort((short) extraLength).putShort((short) 0)
+                        .putShort((short) 0).putShort((short) 0).putInt(0)
+                        .putInt(bigOffset ? 0xFFFFFFFF : (int) e.offset).put(nameBytes);
+                if (zip64) {
+                    cd.putShort((short) 0x0001).putShort((short) (extraLength - 4));
+                    if (e.zip64) {
+                        cd.putLong(e.size).putLong(e.compressedSize);
+                    }
+                    if (bigOffset) {
+                        cd.putLong(e.offset);
+                    }
+                }
+                writeBuffer(cd);
+            }
+            long cdEnd = position;
+            long cdSize = cdEnd - cdStart;
+
+            if (cdStart >= ZIP64_LIMIT || entries.size() >= 0xFFFF) {
+                ByteBuffer eocd64 = le(56 + 20);
+                eocd64.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                        .putLong(entries.size()).putLong(entries.size()).putLong(cdSize).putLong(cdStart);
+                eocd64.putInt(0x07064b50).putInt(0).putLong(cdEnd).putInt(1);
+                writeBuffer(eocd64);
+            }
+
+            int count = Math.min(entries.size(), 0xFFFF);
+            ByteBuffer eocd = le(22);
+            eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) count).putShort((short) count)
+                    .putInt((int) cdSize).putInt(cdStart >= ZIP64_LIMIT ? 0xFFFFFFFF : (int) cdStart)
+                    .putShort((short) 0);
+            writeBuffer(eocd);
+            out.flush();
+        }
+
+        private void writeLocalHeader(InnerEntry e) throws IOException {
+            byte[] nameBytes = e.name.getBytes(StandardCharsets.UTF_8);
+            int extraLength = e.zip64 ? 20 : 0;
+            // Streamed entries leave CRC and sizes to the data descriptor
+            long crcField = e.streamed ? 0 : e.crc;
+            long compressedField = e.zip64 ? ZIP64_LIMIT : e.streamed ? 0 : e.compressedSize;
+            long sizeField = e.zip64 ? ZIP64_LIMIT : e.streamed ? 0 : e.size;
+
+            ByteBuffer header = le(30 + nameBytes.length + extraLength);
+            header.putInt(0x04034b50).putShort((short) (e.zip64 ? 45 : 20)).putShort(e.flags())
+                    .putShort((short) 8).putInt(e.dosTime)
+                    .putInt((int) crcField).putInt((int) compressedField).putInt((int) sizeField)
+                    .putShort((short) nameBytes.length).putShort((short) extraLength).put(nameBytes);
+            if (e.zip64) {
+                header.putShort((short) 0x0001).putShort((short) 16)
+                        .putLong(e.streamed ? 0 : e.size).putLong(e.streamed ? 0 : e.compressedSize);
+            }
+            writeBuffer(header);
+            e.dataOffset = position;
+        }
+
+        private void writeDeflated() throws IOException {
+            int n = deflater.deflate(deflated);
+            current.deflatedBytes += n;
+            writeRawBytes(deflated, 0, n);
+        }
+
+        private void writeRawBytes(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+
+        private void writeBuffer(ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            writeRawBytes(buffer.array(), 0, buffer.limit());
+        }
+
+        private static ByteBuffer le(int capacity) {
+            return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /** MS-DOS date (high half) and time (low half) in local time, as zip tools expect. */
+        static int dosTime(FileTime time) {
+            LocalDateTime t = LocalDateTime.ofInstant(time.toInstant(), ZoneId.systemDefault());
+            if (t.getYear() < 1980) {
+                return 0x00210000; // 1980-01-01 00:00:00
+            }
+            return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                    | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+        }
+
+        private static class InnerEntry {
+            final String name;
+            final int dosTime;
+            final long offset;
+            long dataOffset;
+            boolean streamed;
+            boolean zip64;
+            long crc;
+            long compressedSize;
+            long size;
+            long deflatedBytes;
+
+            InnerEntry(String name, FileTime modified, long offset) {
+                this.name = name;
+                this.dosTime = InnerZipWriter.dosTime(modified);
+                this.offset = offset;
+            }
+
+            /** UTF-8 names, plus a data descriptor for streamed entries. */
+            short flags() {
+                return (short) (0x0800 | (streamed ? 0x0008 : 0));
+            }
+        }
+    }
+
+    /**
+     * Minimal seekable zip writer for the outer archive. The content entry is
+     * written with a Zip64 extra field up front so its sizes can be patched in
+     * regardless of how large the payload turns out to be.
+     */
+    static class ZipChannelWriter {
+        private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+        private final FileChannel channel;
+        private final List<CentralEntry> entries = new ArrayList<>();
+        private CentralEntry current;
+
+        ZipChannelWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Writes the local header and returns the offset at which entry data starts. */
+        long beginStoredEntry(String name) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            current = new CentralEntry(name, channel.position());
+            current.zip64 = true;
+
+            ByteBuffer header = le(30 + nameBytes.length + 20);
+            header.putInt(0x04034b50).putShort((short) 45).putShort((short) 0x0800).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0x21) // DOS time/date: 1980-01-01
+                    .putInt(0).putInt(0xFFFFFFFF).putInt(0xFFFFFFFF)
+                    .putShort((short) nameBytes.length).putShort((short) 20).put(nameBytes)
+                    .putShort((short) 0x0001).putShort((short) 16).putLong(0).putLong(0);
+            writeFully(header.flip());
+            return channel.position();
+        }
+
+        void endStoredEntry(long crc, long size) throws IOException {
+            long end = channel.position();
+            current.crc = crc;
+            current.size = size;
+
+            byte[] nameBytes = current.name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer crcField = le(4).putInt((int) crc);
+            channel.write(crcField.flip(), current.offset + 14);
+            ByteBuffer sizes = le(16).putLong(size).putLong(size);
+            channel.write(sizes.flip(), current.offset + 30 + nameBytes.length + 4);
+
+            channel.position(end);
+            entries.add(current);
+            current = null;
+        }
+
+        void writeSmallEntry(String name, byte[] data) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            CentralEntry entry = new CentralEntry(name, channel.position());
+            entry.crc = crc.getValue();
+            entry.size = data.length;
+
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = le(30 + nameBytes.length);
+            header.putInt(0x04034b50).putShort((short) 20).putShort((short) 0x0800).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0x21)
+                    .putInt((int) entry.crc).putInt(data.length).putInt(data.length)
+                    .putShort((short) nameBytes.length).putShort((short) 0).put(nameBytes);
+            writeFully(header.flip());
+            writeFully(ByteBuffer.wrap(data));
+            entries.add(entry);
+        }
+
+        void finish() throws IOException {
+            long cdStart = channel.position();
+            for (CentralEntry e : entries) {
+                byte[] nameBytes = e.name.getBytes(StandardCharsets.UTF_8);
+                boolean bigOffset = e.offset >= ZIP64_LIMIT;
+                boolean zip64 = e.zip64 || bigOffset;
+                int extraLength = zip64 ? 4 + 16 + (bigOffset ? 8 : 0) : 0;
+
+                ByteBuffer cd = le(46 + nameBytes.length + extraLength);
+                cd.putInt(0x02014b50).putShort((short) 45).putShort((short) (zip64 ? 45 : 20))
+                        .putShort((short) 0x0800).putShort((short) 0).putShort((short) 0).putShort((short) 0x21)
+                        .putInt((int) e.crc)
+                        .putInt(zip64 ? 0xFFFFFFFF : (int) e.size).putInt(zip64 ? 0xFFFFFFFF : (int) e.size)
+                        .putShort((short) nameBytes.length).putShort((short) extraLength).putShort((short) 0)
+                        .putShort((short) 0).putShort((short) 0).putInt(0)
+                        .putInt(bigOffset ? 0xFFFFFFFF : (int) e.offset).put(nameBytes);
+                if (zip64) {
+                    cd.putShort((short) 0x0001).putShort((short) (extraLength - 4)).putLong(e.size).putLong(e.size);
+                    if (bigOffset) {
+                        cd.putLong(e.offset);
+                    }
+                }
+                writeFully(cd.flip());
+            }
+            long cdEnd = channel.position();
+            long cdSize = cdEnd - cdStart;
+
+            if (cdStart >= ZIP64_LIMIT) {
+                ByteBuffer eocd64 = le(56 + 20);
+                eocd64.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                        .putLong(entries.size()).putLong(entries.size()).putLong(cdSize).putLong(cdStart);
+                eocd64.putInt(0x07064b50).putInt(0).putLong(cdEnd).putInt(1);
+                writeFully(eocd64.flip());
+            }
+
+            ByteBuffer eocd = le(22);
+            eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) entries.size()).putShort((short) entries.size())
+                    .putInt((int) cdSize).putInt(cdStart >= ZIP64_LIMIT ? 0xFFFFFFFF : (int) cdStart)
+                    .putShort((short) 0);
+            writeFully(eocd.flip());
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private static ByteBuffer le(int capacity) {
+            return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static class CentralEntry {
+            final String name;
+            final long offset;
+            long crc;
+            long size;
+            boolean zip64;
+
+            CentralEntry(String name, long offset) {
+                this.name = name;
+                this.offset = offset;
+            }
+        }
+    }
+
+    /**
+     * Port of zlib's crc32_combine: derives CRC(A + B) from CRC(A), CRC(B) and
+     * len(B). Needed because the HMAC in front of the payload is only known once
+     * the payload itself has been written.
+     */
+    static final class Crc32Combine {
+        private static final int GF2_DIM = 32;
+
+        private Crc32Combine() {
+        }
+
+        static long combine(long crc1, long crc2, long len2) {
+            if (len2 <= 0) {
+                return crc1;
+            }
+            long[] even = new long[GF2_DIM];
+            long[] odd = new long[GF2_DIM];
+
+            odd[0] = 0xEDB88320L;
+            long row = 1;
+            for (int n = 1; n < GF2_DIM; n++) {
+                odd[n] = row;
+                row <<= 1;
+            }
+            square(even, odd);
+            square(odd, even);
+
+            do {
+                square(even, odd);
+                if ((len2 & 1) != 0) {
+                    crc1 = times(even, crc1);
+                }
+                len2 >>= 1;
+                if (len2 == 0) {
+                    break;
+                }
+                square(odd, even);
+                if ((len2 & 1) != 0) {
+                    crc1 = times(odd, crc1);
+                }
+                len2 >>= 1;
+            } while (len2 != 0);
+
+            return (crc1 ^ crc2) & 0xFFFFFFFFL;
+        }
+
+        private static long times(long[] mat, long vec) {
+            long sum = 0;
+            int i = 0;
+            while (vec != 0) {
+                if ((vec & 1) != 0) {
+                    sum ^= mat[i];
+                }
+                vec >>>= 1;
+                i++;
+            }
+            return sum;
+        }
+
+        private static void square(long[] square, long[] mat) {
+            for (int n = 0; n < GF2_DIM; n++) {
+                square[n] = times(mat, mat[n]);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.antigravity.intunepackager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Runs long operations such as packaging off the JavaFX Application Thread.
+ *
+ * A job is a named list of stages that run one after another on their own
+ * virtual thread, so any number of jobs can run at once. Each stage reports
+ * its own 0..1 progress, which is folded into the job's overall progress by
+ * the stage weights. Listener callbacks go through the executor passed at
+ * submit time ({@code Platform::runLater} for the UI).
+ *
+ * Cancelling a job, or exceeding its timeout, interrupts its thread. The
+ * file and network code underneath uses interruptible channels and stops
+ * promptly; stages can also call {@link StageContext#checkCancelled()}.
+ */
+public class JobEngine {
+    private static final Logger LOGGER = Logger.getLogger(JobEngine.class.getName());
+
+    private static final JobEngine SHARED = new JobEngine();
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "job-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public enum State {
+        RUNNING, SUCCEEDED, FAILED, CANCELLED, TIMED_OUT
+    }
+
+    /** Work done by one stage. */
+    public interface StageWork {
+        void run(StageContext context) throws Exception;
+    }
+
+    /** Receives job events, on the executor given to {@link #submit}. */
+    public interface JobListener {
+        default void stageStarted(Job job, String stage) {
+        }
+
+        /** @param progress overall progress of the job, 0..1. */
+        default void progress(Job job, double progress, String message) {
+        }
+
+        /** @param error null on success; a {@link CancellationException} or {@link TimeoutException} if stopped. */
+        void finished(Job job, Throwable error);
+    }
+
+    public record Stage(String name, double weight, StageWork work) {
+    }
+
+    private final Map<String, Job> running = new ConcurrentHashMap<>();
+
+    public static JobEngine getShared() {
+        return SHARED;
+    }
+
+    public static Stage stage(String name, double weight, StageWork work) {
+        return new Stage(name, weight, work);
+    }
+
+    /**
+     * Starts a job.
+     *
+     * @param key      jobs with the same key (e.g. the output folder) may not
+     *                 run at the same time.
+     * @param timeout  overall limit, or null for none.
+     * @param callback where listener callbacks run.
+     * @throws IllegalStateException if a job with this key is still running.
+     */
+    public Job submit(String key, String name, Duration timeout, Executor callback, JobListener listener,
+            List<Stage> stages) {
+        Job job = new Job(key, name, stages, callback, listener);
+        if (running.putIfAbsent(key, job) != null) {
+            throw new IllegalStateException("\"" + running.get(key).getName() + "\" is already running for " + key);
+        }
+        job.thread = Thread.ofVirtual().name("job-" + name).unstarted(job::run);
+        if (timeout != null) {
+            job.timeoutTask = WATCHDOG.schedule(job::timeOut, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        job.thread.start();
+        return job;
+    }
+
+    public boolean isRunning(String key) {
+        return running.containsKey(key);
+    }
+
+    public class Job {
+        private final String key;
+        private final String name;
+        private final List<Stage> stages;
+        private final Executor callback;
+        private final JobListener listener;
+        private final double totalWeight;
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        private volatile State state = State.RUNNING;
+        private volatile State stopRequest;
+        private Thread thread;
+        private ScheduledFuture<?> timeoutTask;
+
+        private Job(String key, String name, List<Stage> stages, Executor callback, JobListener listener) {
+            this.key = key;
+            this.name = name;
+            this.stages = List.copyOf(stages);
+            this.callback = callback;
+            this.listener = listener;
+            this.totalWeight = this.stages.stream().mapToDouble(Stage::weight).sum();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /** Completes when the job has stopped, however it ended. */
+        public CompletableFuture<Void> getCompletion() {
+            return completion;
+        }
+
+        /** Stops the job; its listener is told through {@code finished}. */
+        public void cancel() {
+            stop(State.CANCELLED);
+        }
+
+        private void timeOut() {
+            stop(State.TIMED_OUT);
+        }
+
+        private void stop(State reason) {
+            if (state == State.RUNNING && stopRequest == null) {
+                stopRequest = reason;
+                thread.interrupt();
+            }
+        }
+
+        private void run() {
+            long start = System.nanoTime();
+            double done = 0;
+            Throwable error = null;
+            try {
+                for (Stage stage : stages) {
+                    checkStopped();
+                    notify(() -> listener.stageStarted(this, stage.name()));
+                    stage.work().run(new StageContext(this, stage, done));
+                    done += stage.weight();
+                    double progress = fraction(done);
+                    notify(() -> listener.progress(this, progress, stage.name() + " done"));
+                }
+                checkStopped();
+            } catch (Exception | Error e) {
+                error = e;
+            }
+
+            if (stopRequest != null) {
+                // Whatever the interrupted stage threw, report why it was stopped
+                String message = "\"" + name + "\" " + (stopRequest == State.TIMED_OUT ? "timed out" : "was cancelled");
+                error = stopRequest == State.TIMED_OUT ? new TimeoutException(message) : new CancellationException(message);
+                state = stopRequest;
+            } else {
+                state = error == null ? State.SUCCEEDED : State.FAILED;
+            }
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            running.remove(key, this);
+            LOGGER.info("Job " + name + " " + state + " after " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+            Throwable result = error;
+            notify(() -> listener.finished(this, result));
+            if (result == null) {
+                completion.complete(null);
+            } else {
+                completion.completeExceptionally(result);
+            }
+        }
+
+        private void checkStopped() {
+            if (stopRequest != null) {
+                throw new CancellationException();
+            }
+        }
+
+        private double fraction(double weight) {
+            return totalWeight > 0 ? Math.min(1.0, weight / totalWeight) : 0;
+        }
+
+        private void notify(Runnable event) {
+            if (listener != null) {
+                callback.execute(event);
+            }
+        }
+    }
+
+    /** Handed to each stage to report progress and observe cancellation. */
+    public static class StageContext {
+        private final Job job;
+        private final Stage stage;
+        private final double weightBefore;
+
+        private StageContext(Job job, Stage stage, double weightBefore) {
+            this.job = job;
+            this.stage = stage;
+            this.weightBefore = weightBefore;
+        }
+
+        /** @param fraction progress within this stage, 0..1. */
+        public void progress(double fraction, String message) {
+            double overall = job.fraction(weightBefore + stage.weight() * Math.max(0, Math.min(1, fraction)));
+            job.notify(() -> job.listener.progress(job, overall, message));
+        }
+
+        public boolean isCancelled() {
+            return job.stopRequest != null;
+        }
+
+        /** Throws if the job has been cancelled or has timed out. */
+        public void checkCancelled() throws CancellationException {
+            job.checkStopped();
+        }
+    }
+}
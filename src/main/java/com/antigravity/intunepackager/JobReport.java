@@ -0,0 +1,137 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of one packaging or upload job, written as
+ * {@code <kind>-report.json} into the job's output folder so performance
+ * can be compared across releases.
+ *
+ * Stages are listed individually; upload blocks are summarized (count,
+ * bytes, retries, HTTP statuses, latency percentiles and the effective
+ * throughput over the whole upload).
+ */
+public class JobReport {
+    public static final int FORMAT_VERSION = 1;
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final String kind;
+    private final String job;
+    private final Instant startedAt = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final JsonArray stages = new JsonArray();
+
+    private final Telemetry.Histogram blockMicros = new Telemetry.Histogram();
+    private final LongAdder blockBytes = new LongAdder();
+    private final LongAdder blockRetries = new LongAdder();
+    private final Map<Integer, LongAdder> blockStatuses = new ConcurrentHashMap<>();
+    private final LongAccumulator firstBlockStart = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator lastBlockEnd = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    /**
+     * @param kind "package" or "upload"; names the report file.
+     * @param job  the app being processed.
+     */
+    public JobReport(String kind, String job) {
+        this.kind = kind;
+        this.job = job;
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public String getFileName() {
+        return kind + "-report.json";
+    }
+
+    synchronized void addStage(String stage, String detail, long startNanos, long nanos, long bytes,
+            boolean succeeded) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("stage", stage);
+        if (detail != null) {
+            entry.addProperty("detail", detail);
+        }
+        entry.addProperty("startMillis", (startNanos - this.startNanos) / 1_000_000);
+        entry.addProperty("durationMillis", nanos / 1_000_000.0);
+        entry.addProperty("bytes", bytes);
+        entry.addProperty("megabytesPerSecond", round(Telemetry.megabytesPerSecond(bytes, nanos)));
+        entry.addProperty("succeeded", succeeded);
+        stages.add(entry);
+    }
+
+    void addBlock(long bytes, long startNanos, long nanos, int attempts, int httpStatus) {
+        blockMicros.record(nanos / 1000);
+        if (httpStatus / 100 == 2) {
+            blockBytes.add(bytes);
+        }
+        blockRetries.add(Math.max(0, attempts - 1));
+        blockStatuses.computeIfAbsent(httpStatus, s -> new LongAdder()).increment();
+        firstBlockStart.accumulate(startNanos);
+        lastBlockEnd.accumulate(startNanos + nanos);
+    }
+
+    public synchronized JsonObject toJson() {
+        JsonObject report = new JsonObject();
+        report.addProperty("formatVersion", FORMAT_VERSION);
+        report.addProperty("kind", kind);
+        report.addProperty("job", job);
+        report.addProperty("packagerVersion", IntunewinPackager.PACKAGER_VERSION);
+        report.addProperty("startedAt", startedAt.toString());
+        report.addProperty("totalMillis", (System.nanoTime() - startNanos) / 1_000_000);
+
+        JsonObject environment = new JsonObject();
+        environment.addProperty("java", System.getProperty("java.version"));
+        environment.addProperty("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        environment.addProperty("processors", Runtime.getRuntime().availableProcessors());
+        environment.addProperty("maxHeapMb", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        report.add("environment", environment);
+
+        report.add("stages", stages.deepCopy());
+
+        if (blockMicros.getCount() > 0) {
+            JsonObject blocks = new JsonObject();
+            blocks.addProperty("count", blockMicros.getCount());
+            blocks.addProperty("bytes", blockBytes.sum());
+            blocks.addProperty("retries", blockRetries.sum());
+            JsonObject statuses = new JsonObject();
+            new TreeMap<>(blockStatuses).forEach((status, n) -> statuses.addProperty(String.valueOf(status), n.sum()));
+            blocks.add("httpStatuses", statuses);
+            blocks.add("latencyMicros", blockMicros.toJson());
+            blocks.addProperty("megabytesPerSecond",
+                    round(Telemetry.megabytesPerSecond(blockBytes.sum(), lastBlockEnd.get() - firstBlockStart.get())));
+            report.add("blocks", blocks);
+        }
+        return report;
+    }
+
+    /** Writes the report into {@code directory}, replacing an earlier one. */
+    public Path write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path target = directory.resolve(getFileName());
+        Path tmp = directory.resolve(getFileName() + ".tmp");
+        Files.writeString(tmp, GSON.toJson(toJson()), StandardCharsets.UTF_8);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
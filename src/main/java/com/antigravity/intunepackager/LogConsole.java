@@ -0,0 +1,416 @@
+package com.antigravity.intunepackager;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
+import javafx.collections.transformation.FilteredList;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TextField;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Log view for the wizard, upload and testing windows.
+ *
+ * Lines are kept in a fixed-capacity ring buffer shown through a
+ * virtualized {@link ListView}, so appending is O(1) and only the visible
+ * rows are laid out no matter how long a session runs. {@link #log} may be
+ * called from any thread: lines are queued and the queue is drained once per
+ * rendered frame, so a burst of thousands of lines costs one UI update.
+ *
+ * The oldest lines drop out of the view once it is full; with a spill file
+ * set, every line is also appended there (on a background thread) for the
+ * full history. Lines can be filtered by minimum level, source and text.
+ */
+public final class LogConsole extends VBox {
+    private static final Logger LOGGER = Logger.getLogger(LogConsole.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 5000;
+    public static final Path LOG_DIRECTORY = SettingsManager.APP_DATA_DIR.resolve("logs");
+    private static final String ALL_SOURCES = "All sources";
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    // All spill files are written by one thread, which also owns the open writers
+    private static final ExecutorService SPILL_WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "log-spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<Path, BufferedWriter> SPILL_FILES = new HashMap<>();
+
+    /** One line of the console. */
+    public record Entry(LocalTime time, Level level, String source, String message) {
+        @Override
+        public String toString() {
+            return TIME_FORMAT.format(time) + "  " + String.format("%-7s", level.getName()) + " [" + source + "] "
+                    + message;
+        }
+    }
+
+    private enum LevelFilter {
+        ALL("All levels", Level.ALL),
+        WARNINGS("Warnings and errors", Level.WARNING),
+        ERRORS("Errors only", Level.SEVERE);
+
+        final String label;
+        final Level minimum;
+
+        LevelFilter(String label, Level minimum) {
+            this.label = label;
+            this.minimum = minimum;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final RingBuffer lines = new RingBuffer(DEFAULT_CAPACITY);
+    private final FilteredList<Entry> visible = new FilteredList<>(lines);
+    private final ListView<Entry> listView = new ListView<>(visible);
+    private final ComboBox<LevelFilter> levelFilter = new ComboBox<>(
+            FXCollections.observableArrayList(LevelFilter.values()));
+    private final ObservableList<String> sources = FXCollections.observableArrayList(ALL_SOURCES);
+    private final ComboBox<String> sourceFilter = new ComboBox<>(sources);
+    private final TextField textFilter = new TextField();
+
+    private volatile String source = "App";
+    private volatile Path spillFile;
+
+    // Runs for one pulse after lines are queued, then stops until more arrive
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AnimationTimer drainer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drain();
+            stop();
+            drainScheduled.set(false);
+            if (!pending.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    };
+
+    public LogConsole() {
+        getStyleClass().add("log-console");
+        setSpacing(6);
+
+        levelFilter.getSelectionModel().select(LevelFilter.ALL);
+        sourceFilter.getSelectionModel().select(ALL_SOURCES);
+        textFilter.setPromptText("Filter...");
+        HBox.setHgrow(textFilter, Priority.ALWAYS);
+        levelFilter.valueProperty().addListener((obs, old, value) -> updateFilter());
+        sourceFilter.valueProperty().addListener((obs, old, value) -> updateFilter());
+        textFilter.textProperty().addListener((obs, old, value) -> updateFilter());
+        HBox toolbar = new HBox(8, levelFilter, sourceFilter, textFilter);
+
+        listView.getStyleClass().add("console");
+        listView.setCellFactory(view -> new EntryCell());
+        listView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        listView.setOnKeyPressed(event -> {
+            if (event.isShortcutDown() && event.getCode() == KeyCode.C) {
+                copySelection();
+            }
+        });
+        VBox.setVgrow(listView, Priority.ALWAYS);
+        getChildren().addAll(toolbar, listView);
+    }
+
+    /** Source used by {@link #log(String)}. */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /** Number of lines kept in the view; older lines are dropped (but stay in the spill file). */
+    public void setCapacity(int capacity) {
+        lines.setCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        return lines.capacity();
+    }
+
+    /**
+     * Also appends every line to this file, or stops if null. Consoles may
+     * share a file; their lines are told apart by source.
+     */
+    public void setSpillFile(Path spillFile) {
+        this.spillFile = spillFile;
+    }
+
+    public Path getSpillFile() {
+        return spillFile;
+    }
+
+    /** The shared spill file for today's session logs. */
+    public static Path defaultSpillFile() {
+        return LOG_DIRECTORY.resolve("intunepackager-" + LocalDate.now() + ".log");
+    }
+
+    /** Logs with this console's source and a level guessed from the text ("Error...", "Warning..."). */
+    public void log(String message) {
+        log(guessLevel(message), source, message);
+    }
+
+    /** Logs under the given source, guessing the level from the text. */
+    public void log(String source, String message) {
+        log(guessLevel(message), source, message);
+    }
+
+    /** Logs one or more lines. Safe to call from any thread. */
+    public void log(Level level, String source, String message) {
+        LocalTime now = LocalTime.now().truncatedTo(ChronoUnit.SECONDS);
+        for (String line : message.split("\r?\n", -1)) {
+            if (!line.isBlank()) {
+                pending.add(new Entry(now, level, source, line));
+            }
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            if (Platform.isFxApplicationThread()) {
+                drainer.start();
+            } else {
+                Platform.runLater(drainer::start);
+            }
+        }
+    }
+
+    public void clear() {
+        pending.clear();
+        lines.clear();
+    }
+
+    /** Must run on the FX thread. Moves queued lines into the view. */
+    private void drain() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Entry> batch = new ArrayList<>();
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            batch.add(entry);
+        }
+
+        Path spill = spillFile;
+        if (spill != null) {
+            List<Entry> copy = List.copyOf(batch);
+            SPILL_WRITER.execute(() -> spill(spill, copy));
+        }
+        for (Entry e : batch) {
+            if (!sources.contains(e.source())) {
+                sources.add(e.source());
+            }
+        }
+
+        // Keep following new lines unless the user has selected something to look at
+        boolean follow = listView.getSelectionModel().isEmpty();
+        lines.addAll(batch);
+        if (follow && !visible.isEmpty()) {
+            listView.scrollTo(visible.size() - 1);
+        }
+    }
+
+    private static void spill(Path file, List<Entry> batch) {
+        try {
+            BufferedWriter writer = SPILL_FILES.get(file);
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+                SPILL_FILES.put(file, writer);
+            }
+            for (Entry e : batch) {
+                writer.write(e.toString());
+                writer.newLine();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            LOGGER.warning("Could not write log file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void updateFilter() {
+        LevelFilter level = levelFilter.getValue() != null ? levelFilter.getValue() : LevelFilter.ALL;
+        String selectedSource = sourceFilter.getValue();
+        String text = textFilter.getText() == null ? "" : textFilter.getText().toLowerCase(Locale.ROOT);
+        boolean anySource = selectedSource == null || ALL_SOURCES.equals(selectedSource);
+        if (level == LevelFilter.ALL && anySource && text.isEmpty()) {
+            visible.setPredicate(null);
+            return;
+        }
+        visible.setPredicate(e -> e.level().intValue() >= level.minimum.intValue()
+                && (anySource || selectedSource.equals(e.source()))
+                && (text.isEmpty() || e.message().toLowerCase(Locale.ROOT).contains(text)));
+    }
+
+    private void copySelection() {
+        String text = listView.getSelectionModel().getSelectedItems().stream().map(Entry::toString)
+                .collect(Collectors.joining("\n"));
+        if (!text.isEmpty()) {
+            ClipboardContent content = new ClipboardContent();
+            content.putString(text);
+            Clipboard.getSystemClipboard().setContent(content);
+        }
+    }
+
+    static Level guessLevel(String message) {
+        String lower = message.stripLeading().toLowerCase(Locale.ROOT);
+        if (lower.startsWith("error") || lower.startsWith("fatal") || lower.contains(" error:")
+                || lower.contains("failed")) {
+            return Level.SEVERE;
+        }
+        if (lower.startsWith("warning") || lower.contains(" warning:")) {
+            return Level.WARNING;
+        }
+        return Level.INFO;
+    }
+
+    private static class EntryCell extends ListCell<Entry> {
+        @Override
+        protected void updateItem(Entry item, boolean empty) {
+            super.updateItem(item, empty);
+            getStyleClass().removeAll("log-warning", "log-error");
+            if (empty || item == null) {
+                setText(null);
+                return;
+            }
+            setText(item.toString());
+            if (item.level().intValue() >= Level.SEVERE.intValue()) {
+                getStyleClass().add("log-error");
+            } else if (item.level().intValue() >= Level.WARNING.intValue()) {
+                getStyleClass().add("log-warning");
+            }
+        }
+    }
+
+    /**
+     * Fixed-capacity observable list: appending past capacity overwrites the
+     * oldest entries. Each {@link #addAll} fires a single change (removed
+     * prefix + added suffix), which is what keeps the ListView cheap.
+     */
+    private static class RingBuffer extends ObservableListBase<Entry> {
+        private Entry[] slots;
+        private int head;
+        private int size;
+
+        RingBuffer(int capacity) {
+            slots = new Entry[capacity];
+        }
+
+        int capacity() {
+            return slots.length;
+        }
+
+        void setCapacity(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be positive");
+            }
+            List<Entry> keep = new ArrayList<>(subList(Math.max(0, size - capacity), size));
+            clear();
+            slots = new Entry[capacity];
+            addAll(keep);
+        }
+
+        @Override
+        public Entry get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return slots[(head + index) % slots.length];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Entry> added) {
+            if (added.isEmpty()) {
+                return false;
+            }
+            // Lines of a burst larger than the buffer would be evicted straight away; skip them
+            int count = Math.min(added.size(), slots.length);
+            int evict = Math.max(0, size + count - slots.length);
+            beginChange();
+            if (evict > 0) {
+                List<Entry> removed = new ArrayList<>(subList(0, evict));
+                for (int i = 0; i < evict; i++) {
+                    slots[(head + i) % slots.length] = null;
+                }
+                head = (head + evict) % slots.length;
+                size -= evict;
+                nextRemove(0, removed);
+            }
+            int skip = added.size() - count;
+            int from = size;
+            for (Entry e : added) {
+                if (skip-- > 0) {
+                    continue;
+                }
+                slots[(head + size) % slots.length] = e;
+                size++;
+            }
+            nextAdd(from, size);
+            endChange();
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            if (size == 0) {
+                return;
+            }
+            List<Entry> removed = new ArrayList<>(this);
+            Arrays.fill(slots, null);
+            head = 0;
+            size = 0;
+            beginChange();
+            nextRemove(0, removed);
+            endChange();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.antigravity.intunepackager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads tables straight out of an MSI database without Windows Installer.
+ *
+ * An MSI is an OLE compound file (CFB). Each table is a stream in the root
+ * storage whose name is compressed with the MSI stream-name encoding; strings
+ * are stored once in the {@code _StringPool}/{@code _StringData} streams and
+ * referenced by index from the table streams, which are laid out column by
+ * column. Only the handful of sectors needed for the requested streams are
+ * read, with positional reads. The file is deliberately not memory-mapped:
+ * Windows keeps a mapped file locked until the mapping is garbage collected,
+ * which would stop the user moving or replacing the installer they just
+ * inspected.
+ */
+public class MsiDatabaseReader implements Closeable {
+
+    private static final long CFB_SIGNATURE = 0xE11AB1A1E011CFD0L;
+    private static final int END_OF_CHAIN = 0xFFFFFFFE;
+    private static final int NO_STREAM = 0xFFFFFFFF;
+    private static final int DIR_ENTRY_SIZE = 128;
+    private static final int HEADER_DIFAT_ENTRIES = 109;
+
+    private final FileChannel channel;
+    private final int sectorSize;
+    private final int miniSectorSize;
+    private final int miniStreamCutoff;
+    private final int[] fatSectors;
+    private final ByteBuffer[] fatCache;
+    private final int firstMiniFatSector;
+    private final Map<String, DirEntry> rootStreams = new HashMap<>();
+    private DirEntry rootEntry;
+    private byte[] miniStream;
+    private byte[] miniFat;
+
+    private String[] strings;
+    private boolean longStringRefs;
+
+    private MsiDatabaseReader(Path msiPath) throws IOException {
+        channel = FileChannel.open(msiPath, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < 512) {
+                throw new IOException("Not an MSI (OLE compound file) database: " + msiPath);
+            }
+            ByteBuffer header = read(0, 512);
+            if (header.getLong(0) != CFB_SIGNATURE) {
+                throw new IOException("Not an MSI (OLE compound file) database: " + msiPath);
+            }
+            sectorSize = 1 << header.getShort(0x1E);
+            miniSectorSize = 1 << header.getShort(0x20);
+            int fatSectorCount = header.getInt(0x2C);
+            int firstDirSector = header.getInt(0x30);
+            miniStreamCutoff = header.getInt(0x38);
+            firstMiniFatSector = header.getInt(0x3C);
+            int firstDifatSector = header.getInt(0x44);
+
+            fatSectors = new int[fatSectorCount];
+            fatCache = new ByteBuffer[fatSectorCount];
+            int filled = 0;
+            for (int i = 0; i < HEADER_DIFAT_ENTRIES && filled < fatSectorCount; i++) {
+                fatSectors[filled++] = header.getInt(0x4C + i * 4);
+            }
+            int perDifatSector = sectorSize / 4 - 1;
+            int difatSector = firstDifatSector;
+            while (filled < fatSectorCount && difatSector != END_OF_CHAIN && difatSector >= 0) {
+                ByteBuffer difat = readSector(difatSector);
+                for (int i = 0; i < perDifatSector && filled < fatSectorCount; i++) {
+                    fatSectors[filled++] = difat.getInt(i * 4);
+                }
+                difatSector = difat.getInt(perDifatSector * 4);
+            }
+
+            loadDirectory(firstDirSector);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static MsiDatabaseReader open(Path msiPath) throws IOException {
+        return new MsiDatabaseReader(msiPath);
+    }
+
+    /**
+     * Returns every row of the Property table in file order.
+     */
+    public Map<String, String> readPropertyTable() throws IOException {
+        byte[] table = readTableStream("Property");
+        int refSize = stringRefSize();
+        int rows = table.length / (2 * refSize);
+
+        Map<String, String> props = new LinkedHashMap<>();
+        for (int row = 0; row < rows; row++) {
+            String name = string(readRef(table, row * refSize, refSize));
+            String value = string(readRef(table, (rows + row) * refSize, refSize));
+            if (name != null) {
+                props.put(name, value != null ? value : "");
+            }
+        }
+        return props;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // ==========================================
+    // String pool
+    // ==========================================
+
+    private int stringRefSize() throws IOException {
+        loadStrings();
+        return longStringRefs ? 3 : 2;
+    }
+
+    private String string(int index) throws IOException {
+        loadStrings();
+        return index > 0 && index < strings.length ? strings[index] : null;
+    }
+
+    private void loadStrings() throws IOException {
+        if (strings != null) {
+            return;
+        }
+        ByteBuffer pool = ByteBuffer.wrap(readTableStream("_StringPool")).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] data = readTableStream("_StringData");
+
+        int entries = pool.limit() / 4;
+        int codepageLow = Short.toUnsignedInt(pool.getShort(0));
+        int codepageHigh = Short.toUnsignedInt(pool.getShort(2));
+        longStringRefs = (codepageHigh & 0x8000) != 0;
+        Charset charset = charsetFor(codepageLow | ((codepageHigh & 0x7FFF) << 16));
+
+        strings = new String[entries];
+        int id = 1;
+        int offset = 0;
+        int i = 1;
+        while (i < entries) {
+            int len = Short.toUnsignedInt(pool.getShort(i * 4));
+            int refs = Short.toUnsignedInt(pool.getShort(i * 4 + 2));
+            if (len == 0 && refs == 0) {
+                // Unused slot, still consumes a string id
+                i++;
+                id++;
+                continue;
+            }
+            if (len == 0) {
+                // Strings over 64 KB: the length is carried in the following entry
+                if (i + 1 >= entries) {
+                    break;
+                }
+                len = Short.toUnsignedInt(pool.getShort(i * 4 + 4)) | (Short.toUnsignedInt(pool.getShort(i * 4 + 6)) << 16);
+                i += 2;
+            } else {
+                i++;
+            }
+            if (offset + len > data.length) {
+                throw new IOException("Corrupt MSI string pool");
+            }
+            strings[id++] = new String(data, offset, len, charset);
+            offset += len;
+        }
+    }
+
+    private static int readRef(byte[] table, int offset, int refSize) {
+        int value = (table[offset] & 0xFF) | ((table[offset + 1] & 0xFF) << 8);
+        if (refSize == 3) {
+            value |= (table[offset + 2] & 0xFF) << 16;
+        }
+        return value;
+    }
+
+    private static Charset charsetFor(int codepage) {
+        if (codepage == 65001) {
+            return StandardCharsets.UTF_8;
+        }
+        if (codepage != 0) {
+            try {
+                return Charset.forName("windows-" + codepage);
+            } catch (RuntimeException ignored) {
+                // Unknown codepage: fall through to the installer default
+            }
+        }
+        return Charset.forName("windows-1252");
+    }
+
+    // ==========================================
+    // Compound file structure
+    // ==========================================
+
+    private byte[] readTableStream(String tableName) throws IOException {
+        DirEntry entry = rootStreams.get("!" + tableName);
+        if (entry == null) {
+            throw new IOException("MSI table not found: " + tableName);
+        }
+        return readStream(entry);
+    }
+
+    private void loadDirectory(int firstDirSector) throws IOException {
+        byte[] dir = readChain(firstDirSector, Long.MAX_VALUE);
+        ByteBuffer buf = ByteBuffer.wrap(dir).order(ByteOrder.LITTLE_ENDIAN);
+        int count = dir.length / DIR_ENTRY_SIZE;
+
+        DirEntry root = entry(buf, 0);
+        rootEntry = root;
+
+        // Walk the red-black tree of the root storage only; sub-storages
+        // (embedded transforms) may reuse table names.
+        Deque<Integer> pending = new ArrayDeque<>();
+        if (root.child != NO_STREAM) {
+            pending.push(root.child);
+        }
+        int guard = 0;
+        while (!pending.isEmpty() && guard++ < count) {
+            int index = pending.pop();
+            if (index < 0 || index >= count) {
+                continue;
+            }
+            DirEntry e = entry(buf, index);
+            if (e.type == 2) {
+                rootStreams.put(e.name, e);
+            }
+            if (e.left != NO_STREAM) {
+                pending.push(e.left);
+            }
+            if (e.right != NO_STREAM) {
+                pending.push(e.right);
+            }
+        }
+    }
+
+    private DirEntry entry(ByteBuffer buf, int index) {
+        int base = index * DIR_ENTRY_SIZE;
+        int nameBytes = Math.max(0, Math.min(64, Short.toUnsignedInt(buf.getShort(base + 0x40))) - 2);
+        char[] raw = new char[nameBytes / 2];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = buf.getChar(base + i * 2);
+        }
+        DirEntry e = new DirEntry();
+        e.name = decodeStreamName(raw);
+        e.type = buf.get(base + 0x42);
+        e.left = buf.getInt(base + 0x44);
+        e.right = buf.getInt(base + 0x48);
+        e.child = buf.getInt(base + 0x4C);
+        e.startSector = buf.getInt(base + 0x74);
+        e.size = sectorSize == 512 ? Integer.toUnsignedLong(buf.getInt(base + 0x78)) : buf.getLong(base + 0x78);
+        return e;
+    }
+
+    private byte[] readStream(DirEntry entry) throws IOException {
+        if (entry.size >= miniStreamCutoff) {
+            return readChain(entry.startSector, entry.size);
+        }
+        if (miniStream == null) {
+            miniStream = readChain(rootEntry.startSector, rootEntry.size);
+            miniFat = readChain(firstMiniFatSector, Long.MAX_VALUE);
+        }
+        ByteBuffer fat = ByteBuffer.wrap(miniFat).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] out = new byte[(int) entry.size];
+        int sector = entry.startSector;
+        int written = 0;
+        while (written < out.length && sector != END_OF_CHAIN) {
+            int len = Math.min(miniSectorSize, out.length - written);
+            System.arraycopy(miniStream, sector * miniSectorSize, out, written, len);
+            written += len;
+            sector = fat.getInt(sector * 4);
+        }
+        return out;
+    }
+
+    private byte[] readChain(int startSector, long maxLength) throws IOException {
+        int perFatSector = sectorSize / 4;
+        long limit = Math.min(maxLength, (long) fatSectors.length * perFatSector * sectorSize);
+        if (limit > Integer.MAX_VALUE) {
+            throw new IOException("MSI stream too large");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(limit, 1 << 20));
+        int sector = startSector;
+        long remaining = limit;
+        while (sector != END_OF_CHAIN && sector >= 0 && remaining > 0) {
+            // Streams are usually stored in consecutive sectors; read each run in one call
+            int first = sector;
+            int count = 0;
+            do {
+                count++;
+                sector = nextSector(sector, perFatSector);
+            } while (sector == first + count && (long) count * sectorSize < remaining);
+            int len = (int) Math.min((long) count * sectorSize, remaining);
+            ByteBuffer run = read((long) (first + 1) * sectorSize, len);
+            out.write(run.array(), 0, len);
+            remaining -= len;
+        }
+        return out.toByteArray();
+    }
+
+    private int nextSector(int sector, int perFatSector) throws IOException {
+        int index = sector / perFatSector;
+        if (index >= fatSectors.length) {
+            throw new IOException("Corrupt MSI: sector " + sector + " is outside the FAT");
+        }
+        if (fatCache[index] == null) {
+            fatCache[index] = readSector(fatSectors[index]);
+        }
+        return fatCache[index].getInt((sector % perFatSector) * 4);
+    }
+
+    private ByteBuffer readSector(int sector) throws IOException {
+        return read((long) (sector + 1) * sectorSize, sectorSize);
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("Unexpected end of MSI file");
+            }
+        }
+        return buf.flip();
+    }
+
+    /**
+     * Reverses the MSI stream-name compression: characters in 0x3800-0x47FF
+     * pack two base-64 symbols, 0x4800-0x483F pack one and 0x4840 marks a
+     * table stream (decoded here as '!').
+     */
+    static String decodeStreamName(char[] encoded) {
+        StringBuilder sb = new StringBuilder(encoded.length * 2);
+        for (char ch : encoded) {
+            if (ch >= 0x3800 && ch < 0x4800) {
+                int v = ch - 0x3800;
+                sb.append(mime(v & 0x3F)).append(mime((v >> 6) & 0x3F));
+            } else if (ch >= 0x4800 && ch < 0x4840) {
+                sb.append(mime(ch - 0x4800));
+            } else if (ch == 0x4840) {
+                sb.append('!');
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static char mime(int v) {
+        if (v < 10) {
+            return (char) ('0' + v);
+        }
+        if (v < 36) {
+            return (char) ('A' + v - 10);
+        }
+        if (v < 62) {
+            return (char) ('a' + v - 36);
+        }
+        return v == 62 ? '.' : '_';
+    }
+
+    private static class DirEntry {
+        String name;
+        byte type;
+        int left;
+        int right;
+        int child;
+        int startSector;
+        long size;
+    }
+}
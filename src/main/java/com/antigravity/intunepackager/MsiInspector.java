@@ -1,56 +1,29 @@
 package com.antigravity.intunepackager;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class MsiInspector {
+    private static final Logger LOGGER = Logger.getLogger(MsiInspector.class.getName());
 
     /**
-     * Executes a PowerShell script to utilize the WindowsInstaller COM object
-     * and extracts the core properties of an MSI file.
+     * Reads the Property table of an MSI file in-process (no PowerShell or
+     * Windows Installer COM object required).
      *
      * @param msiPath Absolute path to the MSI file.
-     * @return A map of properties (e.g., ProductCode, ProductName, ProductVersion,
-     *         Manufacturer)
+     * @return The full Property table (e.g., ProductCode, ProductName,
+     *         ProductVersion, Manufacturer, UpgradeCode, ALLUSERS, ...). Empty if
+     *         the file could not be read.
      */
     public static Map<String, String> getMsiProperties(String msiPath) {
-        Map<String, String> props = new HashMap<>();
-        try {
-            String script = "$path = '" + msiPath.replace("'", "''") + "'; " +
-                    "$wi = New-Object -com WindowsInstaller.Installer; " +
-                    "$db = $wi.OpenDatabase($path, 0); " +
-                    "$view = $db.OpenView(\"SELECT Property, Value FROM Property\"); " +
-                    "$view.Execute(); " +
-                    "while ($record = $view.Fetch()) { " +
-                    "    if ($record.StringData(1) -match '^(ProductCode|ProductName|ProductVersion|Manufacturer)$') { "
-                    +
-                    "        Write-Output ($record.StringData(1) + '=' + $record.StringData(2)); " +
-                    "    } " +
-                    "}";
-
-            String encodedScript = java.util.Base64.getEncoder().encodeToString(script.getBytes("UTF-16LE"));
-            ProcessBuilder pb = new ProcessBuilder("powershell.exe", "-NoProfile", "-NonInteractive", "-EncodedCommand",
-                    encodedScript);
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.contains("=")) {
-                        String[] parts = line.split("=", 2);
-                        if (parts.length == 2) {
-                            props.put(parts[0].trim(), parts[1].trim());
-                        }
-                    }
-                }
-            }
-            p.waitFor();
+        try (MsiDatabaseReader reader = MsiDatabaseReader.open(Path.of(msiPath))) {
+            return reader.readPropertyTable();
         } catch (Exception e) {
-            e.printStackTrace();
+            LOGGER.log(Level.WARNING, "Could not read MSI properties from " + msiPath, e);
+            return new HashMap<>();
         }
-        return props;
     }
 }
@@ -0,0 +1,221 @@
+package com.antigravity.intunepackager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The non-UI packaging steps shared by the wizard and the batch CLI:
+ * inspect an installer, stage it, render the scripts and build the
+ * .intunewin. Each step is a separate method so callers can schedule and
+ * time them individually.
+ */
+public class PackageBuilder {
+    private static final Logger LOGGER = Logger.getLogger(PackageBuilder.class.getName());
+
+    public static final String SETUP_FILE = "install.ps1";
+    public static final String STAGING_DIR_NAME = "staging";
+
+    private static final String POWERSHELL_COMMAND =
+            "%SystemRoot%\\sysnative\\WindowsPowerShell\\v1.0\\powershell.exe -windowstyle hidden -executionpolicy bypass -command .\\";
+
+    private final PackageCache cache;
+    private JobReport report;
+
+    /** Uses the package cache configured in the settings. */
+    public PackageBuilder() {
+        this(PackageCache.fromSettings());
+    }
+
+    /** @param cache package cache to consult, or null to always build. */
+    public PackageBuilder(PackageCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Times every following step into this report; {@link #packageApp}
+     * writes it to the output folder.
+     */
+    public void setJobReport(JobReport report) {
+        this.report = report;
+    }
+
+    /**
+     * Derives default package details from an installer file, the same way
+     * the wizard autofills step 2. For EXEs, publisher and version are left
+     * unset.
+     */
+    public static PackageDetails inspect(File installer) {
+        return inspect(installer, null);
+    }
+
+    /** Same as {@link #inspect(File)}, timed into {@code report} (may be null). */
+    public static PackageDetails inspect(File installer, JobReport report) {
+        try (Telemetry.Span span = Telemetry.start(report, "inspect")) {
+            PackageDetails details = inspectInstaller(installer);
+            span.detail(details.getSourceType()).complete();
+            return details;
+        }
+    }
+
+    private static PackageDetails inspectInstaller(File installer) {
+        String name = installer.getName();
+        boolean msi = name.toLowerCase().endsWith(".msi");
+
+        PackageDetails details = new PackageDetails();
+        details.setSourcePath(installer.getAbsolutePath());
+        details.setSourceFileName(name);
+        details.setSourceType(msi ? "MSI" : "EXE");
+        details.setAppName(name.replace(".msi", "").replace(".exe", ""));
+        details.setInstallCmd(POWERSHELL_COMMAND + "install.ps1");
+        details.setUninstallCmd(POWERSHELL_COMMAND + "uninstall.ps1");
+
+        if (msi) {
+            Map<String, String> props = MsiInspector.getMsiProperties(installer.getAbsolutePath());
+            details.setAppName(props.getOrDefault("ProductName", name.replace(".msi", "")));
+            details.setPublisher(props.getOrDefault("Manufacturer", "Unknown Publisher"));
+            details.setVersion(props.getOrDefault("ProductVersion", "1.0.0"));
+            details.setDetectionRule(props.getOrDefault("ProductCode", "{PRODUCT-CODE}"));
+        } else {
+            details.setDetectionRule("C:\\Program Files\\...");
+        }
+        return details;
+    }
+
+    /**
+     * Stages the installer into {@code outputDir/staging} and returns the
+     * staging directory.
+     */
+    public File stageInstaller(PackageDetails details, File outputDir) throws Exception {
+        return stageInstaller(details, outputDir, null);
+    }
+
+    /**
+     * Same as {@link #stageInstaller(PackageDetails, File)}, reporting byte
+     * progress if the installer has to be copied (it is linked, or left
+     * alone when already current, whenever possible).
+     */
+    public File stageInstaller(PackageDetails details, File outputDir, InstallerStager.CopyProgressListener listener)
+            throws Exception {
+        return Telemetry.time(report, "stage", span -> stage(details, outputDir, listener, span));
+    }
+
+    private File stage(PackageDetails details, File outputDir, InstallerStager.CopyProgressListener listener,
+            Telemetry.Span span) throws Exception {
+        File stagingDir = new File(outputDir, STAGING_DIR_NAME);
+        File sourceFile = new File(details.getSourcePath());
+        File stagedSourceFile = new File(stagingDir, sourceFile.getName());
+        if (details.getSourceDigests() != null && details.getSourceDigests().isValidFor(sourceFile.toPath())) {
+            FileDigests.remember(sourceFile.toPath(), details.getSourceDigests());
+        }
+        InstallerStager.Method method = new InstallerStager().stage(sourceFile.toPath(), stagedSourceFile.toPath(),
+                listener);
+        LOGGER.info("Staged " + sourceFile.getName() + " (" + method + ")");
+        span.detail(method.name()).bytes(method == InstallerStager.Method.COPY ? sourceFile.length() : 0);
+        details.setSourceDigests(FileDigests.lookup(sourceFile.toPath()));
+        return stagingDir;
+    }
+
+    /**
+     * Renders install.ps1, uninstall.ps1 and detect.ps1 into the staging
+     * directory and captures the detection script on the details for upload.
+     */
+    public void generateScripts(PackageDetails details, File stagingDir) throws Exception {
+        Telemetry.run(report, "scripts", span -> {
+            ScriptGenerator.getShared().generateAll(stagingDir, details);
+
+            File detectFile = new File(stagingDir, "detect.ps1");
+            if (detectFile.exists()) {
+                details.setDetectionScript(Files.readString(detectFile.toPath()));
+            }
+        });
+    }
+
+    /**
+     * Builds the .intunewin from the staging directory, or restores it from
+     * the package cache when the staging directory is unchanged since an
+     * earlier build.
+     *
+     * @return the package file, {@code outputDir/install.intunewin}.
+     */
+    public File packageApp(File stagingDir, File outputDir) throws Exception {
+        return packageApp(null, stagingDir, outputDir);
+    }
+
+    /**
+     * Same as {@link #packageApp(File, File)}; afterwards the installer's
+     * digests (computed by staging, the cache key or the packager itself)
+     * are available on {@code details}.
+     */
+    public File packageApp(PackageDetails details, File stagingDir, File outputDir) throws Exception {
+        return packageApp(details, stagingDir, outputDir, null);
+    }
+
+    /**
+     * Same as {@link #packageApp(PackageDetails, File, File)}, reporting
+     * progress while a package is actually built (a cache hit completes at
+     * once).
+     */
+    public File packageApp(PackageDetails details, File stagingDir, File outputDir,
+            IntunewinPackager.ProgressListener listener) throws Exception {
+        try {
+            return Telemetry.time(report, "package", span -> buildOrRestore(stagingDir, outputDir, listener, span));
+        } finally {
+            if (report != null) {
+                try {
+                    report.write(outputDir.toPath());
+                } catch (Exception e) {
+                    LOGGER.warning("Could not write " + report.getFileName() + ": " + e.getMessage());
+                }
+            }
+            if (details != null && details.getSourcePath() != null) {
+                File staged = new File(stagingDir, new File(details.getSourcePath()).getName());
+                FileDigests digests = FileDigests.lookup(staged.toPath());
+                if (digests != null) {
+                    details.setSourceDigests(digests);
+                }
+            }
+        }
+    }
+
+    private File buildOrRestore(File stagingDir, File outputDir, IntunewinPackager.ProgressListener listener,
+            Telemetry.Span span) throws Exception {
+        File target = new File(outputDir, "install.intunewin");
+        String key = null;
+        if (cache != null) {
+            try {
+                key = cache.computeKey(stagingDir.toPath(), SETUP_FILE);
+                if (cache.restore(key, target.toPath())) {
+                    LOGGER.info("Reused cached package " + key + " for " + target);
+                    span.detail("cache hit");
+                    return target;
+                }
+            } catch (Exception e) {
+                LOGGER.warning("Package cache unavailable, building from scratch: " + e.getMessage());
+                key = null;
+            }
+        }
+
+        long[] packed = new long[1];
+        PackagerService packager = new PackagerService();
+        if (!packager.packageApp(stagingDir, SETUP_FILE, outputDir, (done, total) -> {
+            packed[0] = total;
+            if (listener != null) {
+                listener.bytesPacked(done, total);
+            }
+        })) {
+            throw new Exception("Failed to create .intunewin package in " + outputDir.getAbsolutePath());
+        }
+        span.detail("built").bytes(packed[0]);
+
+        if (key != null) {
+            try {
+                cache.store(key, target.toPath());
+            } catch (Exception e) {
+                LOGGER.warning("Could not add package to cache: " + e.getMessage());
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,204 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of built .intunewin packages.
+ *
+ * The key is a SHA-256 over the packager version and every file in the
+ * staging folder (relative path, size and SHA-256 from {@link FileDigests}) -
+ * i.e. the installer and the rendered install/uninstall/detect scripts. Rebuilding identical inputs
+ * therefore returns the earlier package instead of compressing and encrypting
+ * again; a metadata-only edit that doesn't change the scripts is a hit too.
+ *
+ * Entries are evicted least-recently-used once the cache exceeds its disk
+ * budget. Recency is the modification time of a small {@code .lastused}
+ * file next to each entry, touched on every hit; the entry itself is not
+ * touched, since it is usually a hard link to a package in the user's
+ * output folder and shares its timestamps.
+ */
+public class PackageCache {
+    private static final Logger LOGGER = Logger.getLogger(PackageCache.class.getName());
+
+    public static final Path DEFAULT_DIRECTORY = SettingsManager.APP_DATA_DIR.resolve("cache");
+    private static final String EXTENSION = ".intunewin";
+    private static final String LAST_USED_EXTENSION = ".lastused";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public PackageCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The cache configured in the settings, or null if it is disabled (budget
+     * of 0).
+     */
+    public static PackageCache fromSettings() {
+        SettingsManager settings = new SettingsManager();
+        long budgetMb = settings.getPackageCacheBudgetMb();
+        String directory = settings.getPackageCacheDirectory();
+        return budgetMb > 0
+                ? new PackageCache(directory != null ? Path.of(directory) : DEFAULT_DIRECTORY, budgetMb * 1024 * 1024)
+                : null;
+    }
+
+    /** Hashes everything that ends up in the package built from {@code stagingDir}. */
+    public String computeKey(Path stagingDir, String setupFile) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        update(digest, IntunewinPackager.PACKAGER_VERSION);
+        update(digest, setupFile);
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(stagingDir)) {
+            files = walk.filter(Files::isRegularFile)
+                    .sorted(Comparator.comparing(p -> stagingDir.relativize(p).toString().replace('\\', '/')))
+                    .toList();
+        }
+
+        for (Path file : files) {
+            // Usually already known from staging or an earlier build, so no extra read
+            FileDigests contents = FileDigests.of(file);
+            update(digest, stagingDir.relativize(file).toString().replace('\\', '/'));
+            update(digest, Long.toString(contents.getSize()));
+            update(digest, contents.getSha256());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Puts the cached package for {@code key} at {@code target} (hard link
+     * where possible, copy otherwise).
+     *
+     * @return false on a cache miss.
+     */
+    public boolean restore(String key, Path target) throws IOException {
+        Path entry = entryFor(key);
+        if (!Files.isRegularFile(entry)) {
+            return false;
+        }
+
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, entry);
+        } catch (NoSuchFileException e) {
+            // Entry evicted concurrently
+            return false;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Different volume or no hard link support
+            Path tmp = target.resolveSibling(target.getFileName() + ".partial");
+            try {
+                Files.copy(entry, tmp, StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException evicted) {
+                return false;
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        markUsed(key);
+        return true;
+    }
+
+    private void markUsed(String key) {
+        Path marker = lastUsedFor(key);
+        try {
+            if (!Files.exists(marker)) {
+                Files.createFile(marker);
+            }
+            Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only affects which entry is evicted first
+        }
+    }
+
+    /** Adds a freshly built package to the cache and evicts old entries if over budget. */
+    public void store(String key, Path packageFile) throws IOException {
+        Files.createDirectories(directory);
+        Path entry = entryFor(key);
+        if (Files.size(packageFile) > maxBytes) {
+            return;
+        }
+        try {
+            Files.createLink(entry, packageFile);
+        } catch (FileAlreadyExistsException e) {
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            Path tmp = directory.resolve(key + "." + UUID.randomUUID() + ".tmp");
+            try {
+                Files.copy(packageFile, tmp);
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        markUsed(key);
+        evict();
+    }
+
+    /** Deletes least recently used entries until the cache fits its budget. */
+    public void evict() throws IOException {
+        record Entry(Path path, long size, long lastUsed) {
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            for (Path p : (Iterable<Path>) list::iterator) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(EXTENSION)) {
+                    Path marker = lastUsedFor(name.substring(0, name.length() - EXTENSION.length()));
+                    try {
+                        // An entry without a marker has not been used since it was stored
+                        Path recency = Files.exists(marker) ? marker : p;
+                        entries.add(new Entry(p, Files.size(p), Files.getLastModifiedTime(recency).toMillis()));
+                    } catch (IOException e) {
+                        // Removed concurrently
+                    }
+                }
+            }
+        }
+
+        long total = entries.stream().mapToLong(Entry::size).sum();
+        entries.sort(Comparator.comparingLong(Entry::lastUsed));
+        for (Entry e : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (Files.deleteIfExists(e.path())) {
+                LOGGER.info("Evicted cached package " + e.path().getFileName());
+            }
+            String name = e.path().getFileName().toString();
+            Files.deleteIfExists(lastUsedFor(name.substring(0, name.length() - EXTENSION.length())));
+            total -= e.size();
+        }
+    }
+
+    private Path entryFor(String key) {
+        return directory.resolve(key + EXTENSION);
+    }
+
+    private Path lastUsedFor(String key) {
+        return directory.resolve(key + LAST_USED_EXTENSION);
+    }
+}
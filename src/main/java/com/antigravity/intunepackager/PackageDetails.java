@@ -17,6 +17,9 @@ public class PackageDetails {
     private String detectionScript;
     private String preInstallScript;
 
+    // Digests of the source installer, filled in once something has hashed it
+    private FileDigests sourceDigests;
+
     // Getters and Setters
 
     public String getPreInstallScript() {
@@ -114,4 +117,12 @@ public class PackageDetails {
     public void setDetectionScript(String detectionScript) {
         this.detectionScript = detectionScript;
     }
+
+    public FileDigests getSourceDigests() {
+        return sourceDigests;
+    }
+
+    public void setSourceDigests(FileDigests sourceDigests) {
+        this.sourceDigests = sourceDigests;
+    }
 }
@@ -1,46 +1,34 @@
 package com.antigravity.intunepackager;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.nio.file.Path;
 import java.util.logging.Logger;
 
 public class PackagerService {
     private static final Logger LOGGER = Logger.getLogger(PackagerService.class.getName());
 
+    private final IntunewinPackager packager = new IntunewinPackager();
+
     /**
-     * Packages the given staging directory into an .intunewin file.
+     * Packages the given staging directory into an .intunewin file using the
+     * built-in streaming packager (no IntuneWinAppUtil.exe required).
      *
      * @param stagingDir The directory containing the source files and generated
      *                   scripts.
      * @param setupFile  The main setup file name (e.g., install.ps1 or the .msi).
      * @param outputDir  The directory where the .intunewin file should be created.
-     * @param toolPath   The path to IntuneWinAppUtil.exe.
      * @return true if successful, false otherwise.
      */
-    public boolean packageApp(File stagingDir, String setupFile, File outputDir, String toolPath) throws Exception {
-        File toolExe = new File(toolPath);
-        if (!toolExe.exists()) {
-            throw new Exception("IntuneWinAppUtil.exe not found at: " + toolExe.getAbsolutePath());
-        }
-
-        ProcessBuilder pb = new ProcessBuilder(
-                toolExe.getAbsolutePath(),
-                "-c", stagingDir.getAbsolutePath(),
-                "-s", setupFile,
-                "-o", outputDir.getAbsolutePath(),
-                "-q");
-        pb.redirectErrorStream(true);
-
-        Process process = pb.start();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                LOGGER.info(line);
-            }
-        }
+    public boolean packageApp(File stagingDir, String setupFile, File outputDir) throws Exception {
+        return packageApp(stagingDir, setupFile, outputDir, null);
+    }
 
-        int exitCode = process.waitFor();
-        return exitCode == 0;
+    /** Same as {@link #packageApp(File, String, File)}, reporting progress to the listener (may be null). */
+    public boolean packageApp(File stagingDir, String setupFile, File outputDir,
+            IntunewinPackager.ProgressListener listener) throws Exception {
+        long start = System.nanoTime();
+        Path result = packager.createPackage(stagingDir.toPath(), setupFile, outputDir.toPath(), listener);
+        LOGGER.info("Created " + result + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return result.toFile().isFile();
     }
 }
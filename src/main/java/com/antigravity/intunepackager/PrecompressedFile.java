@@ -0,0 +1,225 @@
+package com.antigravity.intunepackager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Raw deflate data of a file, made ahead of packaging (see
+ * {@link SpeculativePackaging}) so {@link IntunewinPackager} can copy it into
+ * the inner zip instead of compressing the file itself.
+ *
+ * The file is read once: deflated, CRC'd for the zip entry and hashed into
+ * its {@link FileDigests}. Results are remembered for the life of the
+ * process by SHA-256, so they match the staged link or copy of the file as
+ * well as the original.
+ *
+ * Packaging takes a reference with {@link #acquire} and gives it back with
+ * {@link #release}. A result discarded while packaging still holds it (the
+ * user picked another installer) is forgotten at once, but its data is only
+ * deleted once the last reference is released.
+ */
+public class PrecompressedFile {
+    private static final Logger LOGGER = Logger.getLogger(PrecompressedFile.class.getName());
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Map<String, PrecompressedFile> KNOWN = new ConcurrentHashMap<>();
+    /** Results whose data has not been deleted yet, including discarded ones still referenced. */
+    private static final Set<PrecompressedFile> LIVE = ConcurrentHashMap.newKeySet();
+
+    private final Path data;
+    private final String sha256;
+    private final long size;
+    private final long compressedSize;
+    private final long crc;
+    private int references;
+    private boolean discarded;
+
+    private PrecompressedFile(Path data, String sha256, long size, long compressedSize, long crc) {
+        this.data = data;
+        this.sha256 = sha256;
+        this.size = size;
+        this.compressedSize = compressedSize;
+        this.crc = crc;
+    }
+
+    /** Receives progress while a file is compressed. */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void bytesCompressed(long done, long total);
+    }
+
+    /**
+     * Deflates {@code source} into {@code data} and remembers the result.
+     * Stops with an {@link InterruptedIOException} if the thread is
+     * interrupted.
+     */
+    public static PrecompressedFile create(Path source, Path data, ProgressListener listener) throws IOException {
+        Path partial = data.resolveSibling(data.getFileName() + ".partial");
+        Files.createDirectories(data.getParent());
+        FileDigests.Accumulator accumulator = new FileDigests.Accumulator();
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        long size;
+        long compressed = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            size = in.size();
+            ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long position = 0;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Compression of " + source.getFileName() + " cancelled");
+                }
+                input.clear();
+                int n = in.read(input, position);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of file while compressing " + source);
+                }
+                position += n;
+                input.flip();
+                accumulator.update(input);
+                crc.update(input.duplicate());
+                deflater.setInput(input);
+                while (!deflater.needsInput()) {
+                    compressed += drain(deflater, output, out);
+                }
+                if (listener != null) {
+                    listener.bytesCompressed(position, size);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed += drain(deflater, output, out);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        Files.move(partial, data, StandardCopyOption.REPLACE_EXISTING);
+
+        FileDigests digests = accumulator.finish(source);
+        PrecompressedFile result = new PrecompressedFile(data, digests.getSha256(), size, compressed, crc.getValue());
+        LIVE.add(result);
+        KNOWN.put(digests.getSha256(), result);
+        return result;
+    }
+
+    private static int drain(Deflater deflater, ByteBuffer output, FileChannel out) throws IOException {
+        output.clear();
+        int n = deflater.deflate(output);
+        output.flip();
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+        return n;
+    }
+
+    /**
+     * The remembered deflate data for a file with these digests, or null.
+     * The data stays on disk until the caller calls {@link #release}.
+     */
+    public static PrecompressedFile acquire(FileDigests digests) {
+        if (digests == null) {
+            return null;
+        }
+        PrecompressedFile known = KNOWN.get(digests.getSha256());
+        if (known == null || known.size != digests.getSize()) {
+            return null;
+        }
+        synchronized (known) {
+            if (known.discarded) {
+                return null;
+            }
+            known.references++;
+            return known;
+        }
+    }
+
+    /**
+     * Opens the data for copying, or returns null if it has gone away (e.g.
+     * deleted by hand), in which case the caller compresses the file itself.
+     */
+    public InputStream open() throws IOException {
+        try {
+            return Files.newInputStream(data);
+        } catch (NoSuchFileException e) {
+            LOGGER.warning("Precompressed data " + data.getFileName() + " is missing; compressing again");
+            return null;
+        }
+    }
+
+    /** Gives back a reference taken by {@link #acquire}. */
+    public void release() {
+        boolean delete;
+        synchronized (this) {
+            references--;
+            delete = discarded && references == 0;
+        }
+        if (delete) {
+            deleteData();
+        }
+    }
+
+    /** True if {@code data} holds a result that is remembered or still being used. */
+    public static boolean isInUse(Path data) {
+        return LIVE.stream().anyMatch(live -> live.data.equals(data));
+    }
+
+    /** Forgets this result and deletes its data, once no packaging run is using it any more. */
+    public void discard() {
+        KNOWN.remove(sha256, this);
+        boolean delete;
+        synchronized (this) {
+            discarded = true;
+            delete = references == 0;
+        }
+        if (delete) {
+            deleteData();
+        }
+    }
+
+    private void deleteData() {
+        LIVE.remove(this);
+        try {
+            Files.deleteIfExists(data);
+        } catch (IOException e) {
+            // Left for the next cleanup of the speculative folder
+        }
+    }
+
+    public Path getData() {
+        return data;
+    }
+
+    /** Size of the original file. */
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /** CRC-32 of the original file, as the zip entry needs it. */
+    public long getCrc() {
+        return crc;
+    }
+}
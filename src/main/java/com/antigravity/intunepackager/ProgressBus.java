@@ -0,0 +1,252 @@
+package com.antigravity.intunepackager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Status and progress stream for uploads and other long jobs.
+ *
+ * Producers report under a source name (one per job). Status lines and the
+ * final outcome are published as they happen; progress is collapsed to the
+ * latest value per source and published at most once per {@link #TICK}, so
+ * a tight upload loop produces a few dozen events a second rather than one
+ * per block.
+ *
+ * Any number of {@link Flow.Subscriber}s can listen at once (UI, CLI, log
+ * file, metrics). Each gets its own bounded buffer; a subscriber that falls
+ * too far behind loses events rather than stalling the upload.
+ */
+public class ProgressBus implements Flow.Publisher<ProgressBus.Event>, AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(ProgressBus.class.getName());
+
+    /** Roughly one rendered frame. */
+    public static final Duration TICK = Duration.ofMillis(16);
+    private static final long OFFER_TIMEOUT_MILLIS = 1000;
+
+    private static final ExecutorService DELIVERY = Executors.newVirtualThreadPerTaskExecutor();
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "progress-bus");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ProgressBus SHARED = new ProgressBus();
+
+    public enum Kind {
+        STATUS, PROGRESS, SUCCEEDED, FAILED;
+
+        public boolean isTerminal() {
+            return this == SUCCEEDED || this == FAILED;
+        }
+    }
+
+    /**
+     * @param progress 0..1 for PROGRESS and SUCCEEDED events, NaN otherwise.
+     * @param message  the status line, the latest progress detail, or the
+     *                 error of a FAILED job.
+     */
+    public record Event(String source, Kind kind, double progress, String message) {
+    }
+
+    private final SubmissionPublisher<Event> publisher = new SubmissionPublisher<>(DELIVERY,
+            Flow.defaultBufferSize());
+    private final Map<String, Event> pendingProgress = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public static ProgressBus getShared() {
+        return SHARED;
+    }
+
+    public void status(String source, String message) {
+        flush(source);
+        offer(new Event(source, Kind.STATUS, Double.NaN, message));
+    }
+
+    public void progress(String source, double fraction) {
+        progress(source, fraction, null);
+    }
+
+    /** Collapsed with other progress of the same source until the next tick. */
+    public void progress(String source, double fraction, String message) {
+        pendingProgress.put(source, new Event(source, Kind.PROGRESS, fraction, message));
+        if (flushScheduled.compareAndSet(false, true)) {
+            TICKER.schedule(this::flushAll, TICK.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void succeeded(String source, String message) {
+        flush(source);
+        offer(new Event(source, Kind.SUCCEEDED, 1.0, message));
+    }
+
+    public void failed(String source, String error) {
+        flush(source);
+        offer(new Event(source, Kind.FAILED, Double.NaN, error));
+    }
+
+    /** Events that could not be delivered to a subscriber that fell behind. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Event> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Delivers every event, in order, to {@code handler} on a background
+     * thread. With a source, only that source's events are delivered and the
+     * subscription ends after its SUCCEEDED/FAILED event; with null, all
+     * events until the bus is closed.
+     */
+    public Subscription subscribe(String source, Consumer<Event> handler) {
+        Subscription subscription = new Subscription(source, handler);
+        publisher.subscribe(subscription);
+        return subscription;
+    }
+
+    /**
+     * For views that only show the current state (labels, progress bars):
+     * events that arrive while the executor is still busy are collapsed to
+     * the latest status and the latest progress, so {@code handler} runs at
+     * most once per executor turn. Terminal events are always delivered, last.
+     */
+    public Subscription subscribeLatest(String source, Executor executor, Consumer<Event> handler) {
+        AtomicReference<Event> status = new AtomicReference<>();
+        AtomicReference<Event> progress = new AtomicReference<>();
+        AtomicReference<Event> terminal = new AtomicReference<>();
+        AtomicBoolean scheduled = new AtomicBoolean();
+        Runnable deliver = () -> {
+            scheduled.set(false);
+            for (AtomicReference<Event> latest : List.of(status, progress, terminal)) {
+                Event event = latest.getAndSet(null);
+                if (event != null) {
+                    handler.accept(event);
+                }
+            }
+        };
+        return subscribe(source, event -> {
+            (event.kind().isTerminal() ? terminal : event.kind() == Kind.STATUS ? status : progress).set(event);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(deliver);
+            }
+        });
+    }
+
+    /** Publishes pending progress and completes all subscribers. */
+    @Override
+    public void close() {
+        flushAll();
+        publisher.close();
+    }
+
+    private void flushAll() {
+        flushScheduled.set(false);
+        for (String source : pendingProgress.keySet()) {
+            flush(source);
+        }
+    }
+
+    /** Publishes the source's pending progress first, so it isn't reported after a later status. */
+    private void flush(String source) {
+        Event event = pendingProgress.remove(source);
+        if (event != null) {
+            offer(event);
+        }
+    }
+
+    private void offer(Event event) {
+        if (publisher.isClosed()) {
+            return;
+        }
+        publisher.offer(event, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, (subscriber, lost) -> {
+            if (dropped.incrementAndGet() % 100 == 1) {
+                LOGGER.warning("Progress subscriber is falling behind; dropped " + dropped.get() + " event(s)");
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Subscriber for a handler. Requests one event at a time, so the bus
+     * buffers for it rather than overrunning it.
+     */
+    public static class Subscription implements Flow.Subscriber<Event> {
+        private final String source;
+        private final Consumer<Event> handler;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile Flow.Subscription upstream;
+
+        private Subscription(String source, Consumer<Event> handler) {
+            this.source = source;
+            this.handler = handler;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            if (done.isDone()) {
+                subscription.cancel();
+            } else {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onNext(Event event) {
+            if (source == null || source.equals(event.source())) {
+                try {
+                    handler.accept(event);
+                } catch (RuntimeException e) {
+                    LOGGER.warning("Progress handler failed: " + e);
+                }
+                if (source != null && event.kind().isTerminal()) {
+                    cancel();
+                    return;
+                }
+            }
+            upstream.request(1);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            done.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(null);
+        }
+
+        /** Stops delivery; events already being handled still finish. */
+        public void cancel() {
+            done.complete(null);
+            Flow.Subscription current = upstream;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        /** Completes once no more events will be delivered. */
+        public CompletableFuture<Void> getCompletion() {
+            return done;
+        }
+    }
+}
@@ -5,39 +5,145 @@ import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
+/**
+ * Renders install.ps1, uninstall.ps1 and detect.ps1 from Velocity templates.
+ *
+ * One engine is shared by the whole process ({@link #getShared()}) and each
+ * template is parsed once and kept; Velocity templates are safe to merge
+ * from several threads, so the three scripts are rendered concurrently.
+ *
+ * If a template directory is configured, a {@code <script>.vm} file there
+ * overrides the built-in template of the same name. The directory is
+ * watched, and an edited, added or removed template is re-read on the next
+ * render.
+ */
 public class ScriptGenerator {
+    private static final Logger LOGGER = Logger.getLogger(ScriptGenerator.class.getName());
+
+    private static final String CLASSPATH_TEMPLATE_DIR = "/templates/";
+    private static final List<String> SCRIPTS = List.of("install.ps1", "uninstall.ps1", "detect.ps1");
+
+    private static volatile ScriptGenerator shared;
 
     private final VelocityEngine engine;
+    private final Path userTemplateDir;
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    /** The process-wide generator, using the template directory from the settings. */
+    public static ScriptGenerator getShared() {
+        ScriptGenerator generator = shared;
+        if (generator == null) {
+            synchronized (ScriptGenerator.class) {
+                generator = shared;
+                if (generator == null) {
+                    String dir = new SettingsManager().getTemplateDirectory();
+                    generator = new ScriptGenerator(dir != null && !dir.isBlank() ? Path.of(dir) : null);
+                    shared = generator;
+                }
+            }
+        }
+        return generator;
+    }
 
     public ScriptGenerator() {
+        this(null);
+    }
+
+    /**
+     * @param userTemplateDir directory with overriding {@code *.ps1.vm}
+     *                        templates, or null for the built-in ones only.
+     */
+    public ScriptGenerator(Path userTemplateDir) {
+        this.userTemplateDir = userTemplateDir != null && Files.isDirectory(userTemplateDir) ? userTemplateDir : null;
+
         engine = new VelocityEngine();
         Properties props = new Properties();
-        // Load templates from classpath
-        props.setProperty("resource.loaders", "class");
+        // User templates from disk (uncached by Velocity; we cache and invalidate ourselves), then the classpath
+        if (this.userTemplateDir != null) {
+            props.setProperty("resource.loaders", "file,class");
+            props.setProperty("resource.loader.file.class",
+                    "org.apache.velocity.runtime.resource.loader.FileResourceLoader");
+            props.setProperty("resource.loader.file.path", this.userTemplateDir.toAbsolutePath().toString());
+            props.setProperty("resource.loader.file.cache", "false");
+        } else {
+            props.setProperty("resource.loaders", "class");
+        }
         props.setProperty("resource.loader.class.class",
                 "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
         engine.init(props);
+
+        // Pre-warm so the first build doesn't pay for parsing
+        for (String script : SCRIPTS) {
+            getTemplate(script);
+        }
+        if (this.userTemplateDir != null) {
+            startWatcher(this.userTemplateDir);
+        }
+    }
+
+    /** Renders all three scripts into {@code outputDir} in parallel. */
+    public void generateAll(File outputDir, PackageDetails details) throws Exception {
+        List<Future<Void>> renders = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String script : SCRIPTS) {
+                renders.add(executor.submit(() -> {
+                    generateScript(outputDir, script, details);
+                    return null;
+                }));
+            }
+        }
+        for (Future<Void> render : renders) {
+            try {
+                render.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
     }
 
     public void generateInstallScript(File outputDir, PackageDetails details) throws Exception {
-        generateScript(outputDir, "install.ps1", "/templates/install.ps1.vm", details);
+        generateScript(outputDir, "install.ps1", details);
     }
 
     public void generateUninstallScript(File outputDir, PackageDetails details) throws Exception {
-        generateScript(outputDir, "uninstall.ps1", "/templates/uninstall.ps1.vm", details);
+        generateScript(outputDir, "uninstall.ps1", details);
     }
 
     public void generateDetectScript(File outputDir, PackageDetails details) throws Exception {
-        generateScript(outputDir, "detect.ps1", "/templates/detect.ps1.vm", details);
+        generateScript(outputDir, "detect.ps1", details);
+    }
+
+    private void generateScript(File outputDir, String outputFileName, PackageDetails details) throws Exception {
+        Path outputFile = new File(outputDir, outputFileName).toPath();
+        try (Writer writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+            render(outputFileName, details, writer);
+        }
     }
 
-    private void generateScript(File outputDir, String outputFileName, String templatePath, PackageDetails details)
-            throws Exception {
-        Template template = engine.getTemplate(templatePath);
+    /** Merges the template for {@code script} into {@code writer}. */
+    void render(String script, PackageDetails details, Writer writer) {
+        Template template = getTemplate(script);
         VelocityContext context = new VelocityContext();
 
         context.put("appName", details.getAppName());
@@ -59,9 +165,56 @@ public class ScriptGenerator {
         context.put("detectionRule", details.getDetectionRule());
         context.put("preInstallScript", details.getPreInstallScript());
 
-        File outputFile = new File(outputDir, outputFileName);
-        try (Writer writer = new FileWriter(outputFile)) {
-            template.merge(context, writer);
+        template.merge(context, writer);
+    }
+
+    private Template getTemplate(String script) {
+        return templates.computeIfAbsent(script, name -> {
+            String templateName = name + ".vm";
+            if (userTemplateDir != null && Files.isRegularFile(userTemplateDir.resolve(templateName))) {
+                LOGGER.info("Using custom template " + userTemplateDir.resolve(templateName));
+                return engine.getTemplate(templateName);
+            }
+            return engine.getTemplate(CLASSPATH_TEMPLATE_DIR + templateName);
+        });
+    }
+
+    private void startWatcher(Path dir) {
+        WatchService watcher;
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            LOGGER.warning("Cannot watch template directory " + dir + ", edits need a restart: " + e.getMessage());
+            return;
         }
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            templates.clear();
+                        } else if (event.context() instanceof Path changed
+                                && changed.toString().endsWith(".vm")) {
+                            String script = changed.toString().substring(0, changed.toString().length() - 3);
+                            if (templates.remove(script) != null) {
+                                LOGGER.info("Template " + changed + " changed, reloading on next use");
+                            }
+                        }
+                    }
+                    if (!key.reset()) {
+                        templates.clear();
+                        break;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Shutting down
+            }
+        }, "template-watcher");
+        thread.setDaemon(true);
+        thread.start();
     }
 }
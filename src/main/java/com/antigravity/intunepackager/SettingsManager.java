@@ -1,13 +1,24 @@
 package com.antigravity.intunepackager;
 
+import java.nio.file.Path;
 import java.util.prefs.Preferences;
 
 public class SettingsManager {
 
+    /** Per-user folder for caches and other local state. */
+    public static final Path APP_DATA_DIR = Path.of(System.getProperty("user.home"), ".intunepackager");
+
     // Preference Keys
     private static final String PREF_TENANT_ID = "tenantId";
     private static final String PREF_CLIENT_ID = "clientId";
-    private static final String PREF_TOOL_PATH = "toolPath";
+    private static final String PREF_UPLOAD_CONCURRENCY = "uploadConcurrency";
+    private static final String PREF_PACKAGE_CACHE_BUDGET_MB = "packageCacheBudgetMb";
+    private static final String PREF_PACKAGE_CACHE_DIRECTORY = "packageCacheDirectory";
+    private static final String PREF_TEMPLATE_DIRECTORY = "templateDirectory";
+    private static final String PREF_PERSIST_TOKEN_CACHE = "persistTokenCache";
+
+    private static final int DEFAULT_UPLOAD_CONCURRENCY = 8;
+    private static final long DEFAULT_PACKAGE_CACHE_BUDGET_MB = 10 * 1024;
 
     private final Preferences prefs;
 
@@ -19,14 +30,12 @@ public class SettingsManager {
 
     public boolean isSetupComplete() {
         return getTenantId() != null && !getTenantId().isEmpty() &&
-                getClientId() != null && !getClientId().isEmpty() &&
-                getToolPath() != null && !getToolPath().isEmpty();
+                getClientId() != null && !getClientId().isEmpty();
     }
 
-    public void saveSettings(String tenantId, String clientId, String toolPath) {
+    public void saveSettings(String tenantId, String clientId) {
         prefs.put(PREF_TENANT_ID, tenantId);
         prefs.put(PREF_CLIENT_ID, clientId);
-        prefs.put(PREF_TOOL_PATH, toolPath);
     }
 
     public String getTenantId() {
@@ -37,7 +46,56 @@ public class SettingsManager {
         return prefs.get(PREF_CLIENT_ID, null);
     }
 
-    public String getToolPath() {
-        return prefs.get(PREF_TOOL_PATH, null);
+    /** Most Azure Storage blocks kept in flight per upload; the {@link UploadTuner} picks how many below that. */
+    public int getUploadConcurrency() {
+        return Math.max(1, prefs.getInt(PREF_UPLOAD_CONCURRENCY, DEFAULT_UPLOAD_CONCURRENCY));
+    }
+
+    public void setUploadConcurrency(int concurrency) {
+        prefs.putInt(PREF_UPLOAD_CONCURRENCY, concurrency);
+    }
+
+    /** Disk budget of the package cache in MB; 0 disables the cache. */
+    public long getPackageCacheBudgetMb() {
+        return Math.max(0, prefs.getLong(PREF_PACKAGE_CACHE_BUDGET_MB, DEFAULT_PACKAGE_CACHE_BUDGET_MB));
+    }
+
+    public void setPackageCacheBudgetMb(long budgetMb) {
+        prefs.putLong(PREF_PACKAGE_CACHE_BUDGET_MB, budgetMb);
+    }
+
+    /** Folder of the package cache, or null for {@link PackageCache#DEFAULT_DIRECTORY}. */
+    public String getPackageCacheDirectory() {
+        return prefs.get(PREF_PACKAGE_CACHE_DIRECTORY, null);
+    }
+
+    public void setPackageCacheDirectory(String directory) {
+        if (directory == null || directory.isBlank()) {
+            prefs.remove(PREF_PACKAGE_CACHE_DIRECTORY);
+        } else {
+            prefs.put(PREF_PACKAGE_CACHE_DIRECTORY, directory);
+        }
+    }
+
+    /** Folder with custom {@code *.ps1.vm} script templates, or null for the built-in ones. */
+    public String getTemplateDirectory() {
+        return prefs.get(PREF_TEMPLATE_DIRECTORY, null);
+    }
+
+    public void setTemplateDirectory(String directory) {
+        if (directory == null || directory.isBlank()) {
+            prefs.remove(PREF_TEMPLATE_DIRECTORY);
+        } else {
+            prefs.put(PREF_TEMPLATE_DIRECTORY, directory);
+        }
+    }
+
+    /** Whether Graph sign-in tokens are kept in the OS-encrypted on-disk cache between runs. */
+    public boolean isTokenCachePersisted() {
+        return prefs.getBoolean(PREF_PERSIST_TOKEN_CACHE, false);
+    }
+
+    public void setTokenCachePersisted(boolean persisted) {
+        prefs.putBoolean(PREF_PERSIST_TOKEN_CACHE, persisted);
     }
 }
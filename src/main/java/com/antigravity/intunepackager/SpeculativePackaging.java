@@ -0,0 +1,158 @@
+package com.antigravity.intunepackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Packaging work started in the background as soon as the wizard's
+ * installer is picked: the installer is hashed and deflated
+ * ({@link PrecompressedFile}) while the user is still filling in the
+ * details. Generate then only has to stage it (usually a link), render the
+ * scripts and encrypt; the expensive compression is already done.
+ *
+ * Only one speculation runs at a time. Picking another installer discards
+ * the previous one and its data; data left behind by an earlier session is
+ * deleted when the next speculation starts.
+ */
+public class SpeculativePackaging {
+    private static final Logger LOGGER = Logger.getLogger(SpeculativePackaging.class.getName());
+
+    static final Path WORK_DIR = SettingsManager.APP_DATA_DIR.resolve("speculative");
+    private static final long POLL_MILLIS = 200;
+
+    private final File installer;
+    private final long length;
+    private final long lastModified;
+    private final Path data;
+    private final CompletableFuture<PrecompressedFile> result = new CompletableFuture<>();
+    private volatile Thread thread;
+    private volatile long bytesDone;
+
+    private SpeculativePackaging(File installer, Path data) {
+        this.installer = installer;
+        this.length = installer.length();
+        this.lastModified = installer.lastModified();
+        this.data = data;
+    }
+
+    /**
+     * Starts compressing {@code installer} on a background thread, or returns
+     * null if there is not enough free disk space for its compressed copy.
+     */
+    public static SpeculativePackaging start(File installer) {
+        try {
+            Files.createDirectories(WORK_DIR);
+            deleteStale();
+            if (Files.getFileStore(WORK_DIR).getUsableSpace() < installer.length() * 2) {
+                LOGGER.info("Not enough free space to compress " + installer.getName() + " ahead of time");
+                return null;
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Speculative packaging unavailable: " + e.getMessage());
+            return null;
+        }
+
+        SpeculativePackaging speculation = new SpeculativePackaging(installer,
+                WORK_DIR.resolve(System.nanoTime() + "-" + installer.getName() + ".deflate"));
+        speculation.thread = Thread.ofPlatform().daemon().name("speculative-packaging").start(speculation::run);
+        return speculation;
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        try {
+            // Leaves cores to the UI and any upload that is running
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            PrecompressedFile compressed = PrecompressedFile.create(installer.toPath(), data,
+                    (done, total) -> bytesDone = done);
+            LOGGER.info("Compressed " + installer.getName() + " ahead of time in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            result.complete(compressed);
+        } catch (Exception e) {
+            try {
+                Files.deleteIfExists(data);
+            } catch (IOException ignored) {
+                // Removed with the rest of the stale data later
+            }
+            result.completeExceptionally(e);
+        }
+    }
+
+    /** True if this speculation was started for {@code file} and the file has not changed since. */
+    public boolean isFor(File file) {
+        return file != null && file.getAbsoluteFile().equals(installer.getAbsoluteFile())
+                && file.length() == length && file.lastModified() == lastModified;
+    }
+
+    public File getInstaller() {
+        return installer;
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    /** Completes when compression has finished, exceptionally if it failed or was discarded. */
+    public CompletableFuture<PrecompressedFile> getResult() {
+        return result;
+    }
+
+    /**
+     * Waits for the compression to finish, reporting its progress. Packaging
+     * carries on either way; this only avoids compressing the installer twice.
+     *
+     * @return true if the compressed installer is ready to be used.
+     */
+    public boolean await(PrecompressedFile.ProgressListener listener) throws InterruptedException {
+        while (true) {
+            try {
+                result.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (ExecutionException e) {
+                LOGGER.info("Speculative compression of " + installer.getName() + " failed: "
+                        + e.getCause().getMessage());
+                return false;
+            } catch (TimeoutException e) {
+                if (listener != null) {
+                    listener.bytesCompressed(bytesDone, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the work if it is still running and deletes what it produced,
+     * once a packaging run that is already copying it has finished.
+     */
+    public void discard() {
+        Thread running = thread;
+        if (running != null) {
+            running.interrupt();
+        }
+        result.thenAccept(PrecompressedFile::discard);
+    }
+
+    /** Removes data of speculations that are no longer in use (e.g. from an earlier session). */
+    private static void deleteStale() throws IOException {
+        try (Stream<Path> files = Files.list(WORK_DIR)) {
+            for (Path file : files.toList()) {
+                if (PrecompressedFile.isInUse(file)) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Still open elsewhere (Windows); try again next time
+                }
+            }
+        }
+    }
+}
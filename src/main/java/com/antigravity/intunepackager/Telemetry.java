@@ -0,0 +1,384 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.JsonObject;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing and throughput instrumentation for packaging and upload.
+ *
+ * Every stage, upload block and HTTP request is emitted as a JDK Flight
+ * Recorder event (category "Intune Packager"; free when no recording is
+ * running, e.g. start the app with
+ * {@code -XX:StartFlightRecording=filename=packager.jfr}) and folded into
+ * process-wide counters and histograms. Stages and blocks are also added to
+ * the job's {@link JobReport} when there is one.
+ */
+public final class Telemetry {
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private Telemetry() {
+    }
+
+    // ---------------------------------------------------------------
+    // Flight Recorder events
+    // ---------------------------------------------------------------
+
+    @Name("com.antigravity.intunepackager.Stage")
+    @Label("Packager Stage")
+    @Category("Intune Packager")
+    @Description("One stage of a packaging or upload job")
+    @StackTrace(false)
+    public static class StageEvent extends Event {
+        @Label("Job")
+        String job;
+        @Label("Stage")
+        String stage;
+        @Label("Detail")
+        String detail;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Throughput (MB/s)")
+        double megabytesPerSecond;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("com.antigravity.intunepackager.UploadBlock")
+    @Label("Upload Block")
+    @Category("Intune Packager")
+    @Description("One Put Block request to Azure Storage, including retries")
+    @StackTrace(false)
+    public static class BlockEvent extends Event {
+        @Label("Job")
+        String job;
+        @Label("Block Index")
+        int blockIndex;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Attempts")
+        int attempts;
+        @Label("HTTP Status")
+        int httpStatus;
+        @Label("Throughput (MB/s)")
+        double megabytesPerSecond;
+    }
+
+    @Name("com.antigravity.intunepackager.HttpRequest")
+    @Label("Service Request")
+    @Category("Intune Packager")
+    @Description("A Graph or Azure Storage request, including retries")
+    @StackTrace(false)
+    public static class RequestEvent extends Event {
+        @Label("Endpoint")
+        String endpoint;
+        @Label("Operation")
+        String operation;
+        @Label("HTTP Status")
+        int httpStatus;
+        @Label("Attempts")
+        int attempts;
+    }
+
+    // ---------------------------------------------------------------
+    // Recording
+    // ---------------------------------------------------------------
+
+    /** Work timed as a stage. */
+    @FunctionalInterface
+    public interface TimedWork<T> {
+        T run(Span span) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface TimedTask {
+        void run(Span span) throws Exception;
+    }
+
+    /**
+     * Starts timing a stage; {@link Span#close()} records it. A span that is
+     * closed without {@link Span#complete()} counts as failed.
+     *
+     * @param report the job's report, or null.
+     */
+    public static Span start(JobReport report, String stage) {
+        return new Span(report, stage);
+    }
+
+    /** Times {@code work} as a stage; it fails if {@code work} throws. */
+    public static <T> T time(JobReport report, String stage, TimedWork<T> work) throws Exception {
+        try (Span span = start(report, stage)) {
+            T result = work.run(span);
+            span.complete();
+            return result;
+        }
+    }
+
+    public static void run(JobReport report, String stage, TimedTask task) throws Exception {
+        time(report, stage, span -> {
+            task.run(span);
+            return null;
+        });
+    }
+
+    /** Starts timing one upload block; see {@link BlockTimer#end}. */
+    public static BlockTimer startBlock(JobReport report, int blockIndex, long bytes) {
+        return new BlockTimer(report, blockIndex, bytes);
+    }
+
+    /** Starts timing a service request; see {@link RequestTimer#end}. */
+    public static RequestTimer startRequest(ThrottleGovernor.EndpointClass endpoint, String operation) {
+        return new RequestTimer(endpoint, operation);
+    }
+
+    public static void count(String name, long delta) {
+        COUNTERS.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /** All counters and histogram summaries recorded since start-up, sorted by name. */
+    public static JsonObject snapshot() {
+        JsonObject counters = new JsonObject();
+        new TreeMap<>(COUNTERS).forEach((name, value) -> counters.addProperty(name, value.sum()));
+        JsonObject histograms = new JsonObject();
+        new TreeMap<>(HISTOGRAMS).forEach((name, value) -> histograms.add(name, value.toJson()));
+        JsonObject snapshot = new JsonObject();
+        snapshot.add("counters", counters);
+        snapshot.add("histograms", histograms);
+        return snapshot;
+    }
+
+    static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes > 0 && nanos > 0 ? bytes / (1024.0 * 1024.0) / (nanos / 1e9) : 0;
+    }
+
+    public static final class Span implements AutoCloseable {
+        private final JobReport report;
+        private final String stage;
+        private final StageEvent event = new StageEvent();
+        private final long start = System.nanoTime();
+        private long bytes;
+        private String detail;
+        private boolean completed;
+        private boolean closed;
+
+        private Span(JobReport report, String stage) {
+            this.report = report;
+            this.stage = stage;
+            event.begin();
+        }
+
+        /** Bytes processed by the stage, for throughput. */
+        public Span bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        /** Short note on how the stage ran, e.g. "HARD_LINK" or "cache hit". */
+        public Span detail(String detail) {
+            this.detail = detail;
+            return this;
+        }
+
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            long nanos = System.nanoTime() - start;
+            double mbps = megabytesPerSecond(bytes, nanos);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.job = report != null ? report.getJob() : null;
+                event.stage = stage;
+                event.detail = detail;
+                event.bytes = bytes;
+                event.megabytesPerSecond = mbps;
+                event.succeeded = completed;
+                event.commit();
+            }
+
+            histogram("stage." + stage + ".micros").record(nanos / 1000);
+            if (bytes > 0) {
+                count("stage." + stage + ".bytes", bytes);
+            }
+            if (!completed) {
+                count("stage." + stage + ".failures", 1);
+            }
+            if (report != null) {
+                report.addStage(stage, detail, start, nanos, bytes, completed);
+            }
+        }
+    }
+
+    public static final class BlockTimer {
+        private final JobReport report;
+        private final int blockIndex;
+        private final long bytes;
+        private final BlockEvent event = new BlockEvent();
+        private final long start = System.nanoTime();
+
+        private BlockTimer(JobReport report, int blockIndex, long bytes) {
+            this.report = report;
+            this.blockIndex = blockIndex;
+            this.bytes = bytes;
+            event.begin();
+        }
+
+        /** @param httpStatus status of the last attempt, or 0 if no response was received. */
+        public void end(int attempts, int httpStatus) {
+            long nanos = System.nanoTime() - start;
+            double mbps = megabytesPerSecond(bytes, nanos);
+            event.end();
+            if (event.shouldCommit()) {
+                event.job = report != null ? report.getJob() : null;
+                event.blockIndex = blockIndex;
+                event.bytes = bytes;
+                event.attempts = attempts;
+                event.httpStatus = httpStatus;
+                event.megabytesPerSecond = mbps;
+                event.commit();
+            }
+
+            histogram("upload.block.micros").record(nanos / 1000);
+            count("upload.block.count", 1);
+            count("upload.block.retries", Math.max(0, attempts - 1));
+            if (httpStatus / 100 == 2) {
+                count("upload.block.bytes", bytes);
+            } else {
+                count("upload.block.failures", 1);
+            }
+            if (report != null) {
+                report.addBlock(bytes, start, nanos, attempts, httpStatus);
+            }
+        }
+    }
+
+    public static final class RequestTimer {
+        private final ThrottleGovernor.EndpointClass endpoint;
+        private final String operation;
+        private final RequestEvent event = new RequestEvent();
+        private final long start = System.nanoTime();
+
+        private RequestTimer(ThrottleGovernor.EndpointClass endpoint, String operation) {
+            this.endpoint = endpoint;
+            this.operation = operation;
+            event.begin();
+        }
+
+        public void end(int attempts, int httpStatus) {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (event.shouldCommit()) {
+                event.endpoint = endpoint.name();
+                event.operation = operation;
+                event.httpStatus = httpStatus;
+                event.attempts = attempts;
+                event.commit();
+            }
+
+            String prefix = "http." + endpoint.name().toLowerCase();
+            histogram(prefix + ".micros").record(nanos / 1000);
+            count(prefix + ".requests", 1);
+            count(prefix + ".retries", Math.max(0, attempts - 1));
+            count(prefix + ".status." + httpStatus, 1);
+        }
+    }
+
+    /**
+     * Lock-free histogram with four buckets per power of two (about 19%
+     * resolution), enough for percentiles of durations that span
+     * microseconds to hours.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 64 * SUB_BUCKETS + 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+        public void record(long value) {
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            min.accumulate(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /** Upper bound of the bucket holding the given percentile (0..100). */
+        public long percentile(double percentile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.max(min.get(), Math.min(max.get(), upperBound(i)));
+                }
+            }
+            return max.get();
+        }
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            long n = count.sum();
+            json.addProperty("count", n);
+            if (n > 0) {
+                json.addProperty("min", min.get());
+                json.addProperty("mean", sum.sum() / n);
+                json.addProperty("p50", percentile(50));
+                json.addProperty("p95", percentile(95));
+                json.addProperty("p99", percentile(99));
+                json.addProperty("max", max.get());
+            }
+            return json;
+        }
+
+        private static int bucket(long value) {
+            if (value <= 1) {
+                return 0;
+            }
+            int index = (int) Math.ceil(SUB_BUCKETS * Math.log(value) / Math.log(2));
+            return Math.min(BUCKETS - 1, index);
+        }
+
+        private static long upperBound(int bucket) {
+            return (long) Math.ceil(Math.pow(2, (double) bucket / SUB_BUCKETS));
+        }
+    }
+}
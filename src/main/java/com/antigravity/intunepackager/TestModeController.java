@@ -2,14 +2,13 @@ package com.antigravity.intunepackager;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
-import javafx.scene.control.TextArea;
 import java.io.File;
 import java.util.function.Consumer;
 
 public class TestModeController {
 
     @FXML
-    private TextArea consoleArea;
+    private LogConsole consoleArea;
 
     private File stagingDirectory;
     private Consumer<String> logCallback;
@@ -18,6 +17,12 @@ public class TestModeController {
         this.logCallback = logCallback;
     }
 
+    @FXML
+    public void initialize() {
+        consoleArea.setSource("Test");
+        consoleArea.setSpillFile(LogConsole.defaultSpillFile());
+    }
+
     public void setStagingDirectory(File stagingDirectory) {
         this.stagingDirectory = stagingDirectory;
         logToConsole("Staging directory set to: " + stagingDirectory.getAbsolutePath());
@@ -133,7 +138,7 @@ public class TestModeController {
     }
 
     private void logToConsole(String message) {
-        consoleArea.appendText(message + "\n");
+        consoleArea.log(message);
         System.out.println("[TestMode] " + message);
         if (logCallback != null) {
             logCallback.accept(message);
@@ -0,0 +1,200 @@
+package com.antigravity.intunepackager;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide rate governor for Graph and Azure Storage.
+ *
+ * Every outgoing request first takes a token from the bucket of its
+ * {@link EndpointClass}. When a service pushes back (429/503, Retry-After,
+ * or Graph's x-ms-throttle-limit-percentage warning) the whole class pauses
+ * for the requested time and its rate is halved; successes raise it again
+ * slowly. Concurrent uploads therefore settle just under the tenant's limit
+ * instead of all retrying at once.
+ */
+public class ThrottleGovernor {
+    private static final Logger LOGGER = Logger.getLogger(ThrottleGovernor.class.getName());
+
+    /** Groups of endpoints that share a server-side limit. */
+    public enum EndpointClass {
+        // Intune's Graph limits are per tenant and app; storage limits are per account/blob
+        GRAPH(10, 20),
+        STORAGE(200, 64);
+
+        final double maxRatePerSecond;
+        final int burst;
+
+        EndpointClass(double maxRatePerSecond, int burst) {
+            this.maxRatePerSecond = maxRatePerSecond;
+            this.burst = burst;
+        }
+    }
+
+    private static final double MIN_RATE_FRACTION = 0.05;
+    private static final double RECOVERY_FRACTION = 0.02;
+    // Graph reports usage as a fraction of the limit; slow down before it starts rejecting
+    private static final double THROTTLE_WARNING_LEVEL = 0.8;
+    private static final long DEFAULT_PAUSE_MILLIS = 2000;
+
+    private static final ThrottleGovernor SHARED = new ThrottleGovernor();
+
+    private final Map<EndpointClass, Bucket> buckets = new EnumMap<>(EndpointClass.class);
+
+    public static ThrottleGovernor getShared() {
+        return SHARED;
+    }
+
+    public ThrottleGovernor() {
+        for (EndpointClass endpoint : EndpointClass.values()) {
+            buckets.put(endpoint, new Bucket(endpoint));
+        }
+    }
+
+    /** Blocks until a request to this endpoint class may be sent. */
+    public void acquire(EndpointClass endpoint) throws InterruptedException {
+        acquire(endpoint, 1);
+    }
+
+    /** Same as {@link #acquire(EndpointClass)} for a request that counts as several (a $batch). */
+    public void acquire(EndpointClass endpoint, int permits) throws InterruptedException {
+        Bucket bucket = buckets.get(endpoint);
+        long waitNanos;
+        while ((waitNanos = bucket.tryTake(permits)) > 0) {
+            Thread.sleep(Duration.ofNanos(waitNanos));
+        }
+    }
+
+    /**
+     * Feeds a response back into the governor.
+     *
+     * @return true if the request was throttled and should be retried (after
+     *         the next {@link #acquire}, which observes the pause).
+     */
+    public boolean onResponse(EndpointClass endpoint, int status, HttpHeaders headers) {
+        Bucket bucket = buckets.get(endpoint);
+        boolean throttled = status == 429 || status == 503;
+        Optional<Long> retryAfter = retryAfterMillis(headers);
+        if (throttled) {
+            bucket.throttle(retryAfter.orElse(DEFAULT_PAUSE_MILLIS), "HTTP " + status);
+            return true;
+        }
+        double usage = headers.firstValue("x-ms-throttle-limit-percentage").map(ThrottleGovernor::parseDouble)
+                .orElse(0.0);
+        if (usage >= THROTTLE_WARNING_LEVEL) {
+            bucket.slowDown(usage);
+        } else if (status / 100 == 2) {
+            bucket.recover();
+        }
+        return false;
+    }
+
+    /** For throttling reported inside a response body, e.g. a $batch sub-response. */
+    public void onThrottled(EndpointClass endpoint, long retryAfterMillis, String reason) {
+        buckets.get(endpoint).throttle(retryAfterMillis, reason);
+    }
+
+    public double getCurrentRate(EndpointClass endpoint) {
+        return buckets.get(endpoint).rate();
+    }
+
+    static Optional<Long> retryAfterMillis(HttpHeaders headers) {
+        Optional<String> ms = headers.firstValue("retry-after-ms").or(() -> headers.firstValue("x-ms-retry-after-ms"));
+        if (ms.isPresent()) {
+            return Optional.of((long) parseDouble(ms.get()));
+        }
+        return headers.firstValue("Retry-After").map(ThrottleGovernor::parseRetryAfter);
+    }
+
+    /** Retry-After is either delta-seconds or an HTTP date. */
+    static long parseRetryAfter(String value) {
+        String trimmed = value.trim();
+        try {
+            return Math.round(Double.parseDouble(trimmed) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+            } catch (RuntimeException ignored) {
+                return DEFAULT_PAUSE_MILLIS;
+            }
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Token bucket with an adjustable rate and a pause window. */
+    private static class Bucket {
+        private final EndpointClass endpoint;
+        private double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long pausedUntil = System.nanoTime();
+
+        Bucket(EndpointClass endpoint) {
+            this.endpoint = endpoint;
+            this.rate = endpoint.maxRatePerSecond;
+            this.tokens = endpoint.burst;
+        }
+
+        /** Takes the permits and returns 0, or returns how long to wait before trying again. */
+        synchronized long tryTake(int permits) {
+            long now = System.nanoTime();
+            if (now < pausedUntil) {
+                return pausedUntil - now;
+            }
+            tokens = Math.min(endpoint.burst, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            // A request bigger than the bucket may still go once the bucket is full
+            double needed = Math.min(permits, endpoint.burst);
+            if (tokens >= needed) {
+                tokens -= permits;
+                return 0;
+            }
+            return (long) ((needed - tokens) / rate * 1e9) + 1;
+        }
+
+        synchronized void throttle(long pauseMillis, String reason) {
+            long now = System.nanoTime();
+            long until = now + pauseMillis * 1_000_000;
+            // Rejections of requests that were already in flight when the pause began don't count twice
+            if (now >= pausedUntil) {
+                rate = Math.max(endpoint.maxRatePerSecond * MIN_RATE_FRACTION, rate / 2);
+            }
+            tokens = Math.min(tokens, 0);
+            if (until > pausedUntil) {
+                pausedUntil = until;
+                LOGGER.info(endpoint + " throttled (" + reason + "): pausing all requests for " + pauseMillis
+                        + " ms, rate now " + String.format("%.1f", rate) + "/s");
+            }
+        }
+
+        synchronized void slowDown(double usage) {
+            double target = endpoint.maxRatePerSecond / Math.max(1.0, usage * 1.25);
+            if (target < rate) {
+                rate = Math.max(endpoint.maxRatePerSecond * MIN_RATE_FRACTION, target);
+                LOGGER.fine(endpoint + " at " + usage + " of its limit, rate now " + rate + "/s");
+            }
+        }
+
+        synchronized void recover() {
+            rate = Math.min(endpoint.maxRatePerSecond, rate + endpoint.maxRatePerSecond * RECOVERY_FRACTION);
+        }
+
+        synchronized double rate() {
+            return rate;
+        }
+    }
+}
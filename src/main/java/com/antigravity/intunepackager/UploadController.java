@@ -7,61 +7,97 @@ import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
-import javafx.scene.control.TextArea;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class UploadController {
+    private static final Logger LOGGER = Logger.getLogger(UploadController.class.getName());
 
     @FXML
     private Label statusLabel;
     @FXML
     private ProgressBar progressBar;
     @FXML
-    private TextArea uploadLogArea;
+    private LogConsole uploadLogArea;
     @FXML
     private Button closeButton;
 
     private IntuneUploadService uploadService;
     private File intunewinFile;
     private PackageDetails details;
+    private ProgressBus.Subscription logSubscription;
+    private ProgressBus.Subscription viewSubscription;
 
     public void initData(GraphServiceClient graphClient, GraphAuthService authService, File intunewinFile,
             PackageDetails details) {
         this.uploadService = new IntuneUploadService(graphClient, authService);
         this.intunewinFile = intunewinFile;
         this.details = details;
+        uploadLogArea.setSource("Upload");
+        uploadLogArea.setSpillFile(LogConsole.defaultSpillFile());
 
-        uploadService.setStatusCallback(msg -> Platform.runLater(() -> {
-            statusLabel.setText(msg);
-            uploadLogArea.appendText(msg + "\n");
-        }));
-
-        uploadService.setProgressCallback(progress -> Platform.runLater(() -> {
-            progressBar.setProgress(progress);
-        }));
+        // Every status line goes to the log; the label and bar only need the latest state
+        ProgressBus bus = ProgressBus.getShared();
+        String source = uploadService.getProgressSource();
+        logSubscription = bus.subscribe(source, event -> {
+            switch (event.kind()) {
+                case STATUS, SUCCEEDED -> uploadLogArea.log(event.message());
+                case FAILED -> uploadLogArea.log("Error: " + event.message());
+                default -> {
+                }
+            }
+        });
+        viewSubscription = bus.subscribeLatest(source, Platform::runLater, this::showEvent);
 
         startUpload();
     }
 
+    private void showEvent(ProgressBus.Event event) {
+        switch (event.kind()) {
+            case STATUS -> statusLabel.setText(event.message());
+            case PROGRESS -> {
+                progressBar.setProgress(event.progress());
+                if (event.message() != null) {
+                    statusLabel.setText(event.message());
+                }
+            }
+            case SUCCEEDED -> {
+                progressBar.setProgress(1.0);
+                statusLabel.setText("Upload Successful!");
+                closeButton.setDisable(false);
+            }
+            case FAILED -> {
+                statusLabel.setText("Upload Failed");
+                closeButton.setDisable(false);
+            }
+        }
+    }
+
     private void startUpload() {
-        new Thread(() -> {
+        Thread.ofVirtual().name("intune-upload").start(() -> {
             try {
                 uploadService.uploadIntunewin(intunewinFile, details);
-                Platform.runLater(() -> {
-                    closeButton.setDisable(false);
-                    statusLabel.setText("Upload Successful!");
-                });
             } catch (Exception e) {
-                Platform.runLater(() -> {
-                    statusLabel.setText("Upload Failed");
-                    uploadLogArea.appendText("Error: " + e.getMessage() + "\n");
-                    closeButton.setDisable(false);
-                });
-                e.printStackTrace();
+                // Already reported to the view through the progress bus
+                LOGGER.log(Level.WARNING, "Upload of " + intunewinFile.getName() + " failed", e);
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Stops listening to the shared progress bus. Called when the window is
+     * hidden, however it was closed (Close button or title bar).
+     */
+    public void dispose() {
+        if (logSubscription != null) {
+            logSubscription.cancel();
+        }
+        if (viewSubscription != null) {
+            viewSubscription.cancel();
+        }
     }
 
     @FXML
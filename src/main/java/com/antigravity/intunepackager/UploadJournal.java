@@ -0,0 +1,245 @@
+package com.antigravity.intunepackager;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * On-disk record of an in-progress upload, kept next to the package as
+ * {@code <package>.upload.json}. It remembers the Intune objects already
+ * created and every block Azure Storage has acknowledged, so an interrupted
+ * upload can resume by sending only the missing blocks.
+ *
+ * Acknowledged blocks are appended, one JSON line each, to
+ * {@code <package>.upload.blocks} rather than rewriting the whole journal
+ * per block; {@link #save()} folds them into the journal and empties the
+ * log again. A line cut short by a crash is ignored on the next open.
+ *
+ * The journal is only reused for the exact package it was written for (same
+ * size and same HMAC from Detection.xml). It also records a hash of the app
+ * details the app was created with, so the caller can start over when they
+ * have been edited since.
+ */
+public class UploadJournal {
+    private static final Logger LOGGER = Logger.getLogger(UploadJournal.class.getName());
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Gson LINE_GSON = new Gson();
+
+    private transient Path location;
+    private transient Path blockLog;
+    /** Orders block log appends against compaction; taken before the journal's own lock, never inside it. */
+    private final transient Object logLock = new Object();
+
+    private long packageSize;
+    private String contentMac;
+    private String appId;
+    private String appDetailsHash;
+    private String contentVersionId;
+    private String fileId;
+    private String storageUri;
+    private String storageUriExpiry;
+    private boolean blocksCommitted;
+    private boolean fileCommitted;
+    private List<BlockBlobUploader.Block> blocks = new ArrayList<>();
+
+    public static Path locationFor(Path packageFile) {
+        return packageFile.resolveSibling(packageFile.getFileName() + ".upload.json");
+    }
+
+    private static Path blockLogFor(Path packageFile) {
+        return packageFile.resolveSibling(packageFile.getFileName() + ".upload.blocks");
+    }
+
+    /**
+     * Loads the journal for this package, or starts a fresh one if there is
+     * none or it belongs to a different build of the package.
+     */
+    public static UploadJournal open(Path packageFile, IntunewinArchive archive) throws IOException {
+        Path location = locationFor(packageFile);
+        Path blockLog = blockLogFor(packageFile);
+        long size = Files.size(packageFile);
+        String mac = archive.getManifest().getMac();
+
+        if (Files.isRegularFile(location)) {
+            try {
+                UploadJournal existing = GSON.fromJson(Files.readString(location, StandardCharsets.UTF_8),
+                        UploadJournal.class);
+                if (existing != null && existing.packageSize == size && mac.equals(existing.contentMac)) {
+                    existing.location = location;
+                    existing.blockLog = blockLog;
+                    existing.replayBlockLog();
+                    return existing;
+                }
+                LOGGER.info("Ignoring stale upload journal " + location + " (package was rebuilt)");
+            } catch (RuntimeException e) {
+                LOGGER.warning("Ignoring unreadable upload journal " + location + ": " + e.getMessage());
+            }
+        }
+
+        UploadJournal journal = new UploadJournal();
+        journal.location = location;
+        journal.blockLog = blockLog;
+        journal.packageSize = size;
+        journal.contentMac = mac;
+        Files.deleteIfExists(blockLog);
+        return journal;
+    }
+
+    public synchronized boolean isResume() {
+        return appId != null;
+    }
+
+    /**
+     * Writes the journal atomically (temp file + move), including the blocks
+     * logged so far, and empties the block log.
+     */
+    public void save() throws IOException {
+        synchronized (logLock) {
+            String json;
+            synchronized (this) {
+                json = GSON.toJson(this);
+            }
+            Path tmp = location.resolveSibling(location.getFileName() + ".tmp");
+            Files.writeString(tmp, json, StandardCharsets.UTF_8);
+            Files.move(tmp, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(blockLog);
+        }
+    }
+
+    public void delete() throws IOException {
+        synchronized (logLock) {
+            Files.deleteIfExists(location);
+            Files.deleteIfExists(blockLog);
+        }
+    }
+
+    /** Records an acknowledged block by appending one line to the block log. */
+    public void markBlockAcknowledged(BlockBlobUploader.Block block) throws IOException {
+        byte[] line = (LINE_GSON.toJson(block) + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (logLock) {
+            synchronized (this) {
+                blocks.add(block);
+            }
+            Files.write(blockLog, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /** Adds the blocks logged since the journal was last saved. */
+    private void replayBlockLog() throws IOException {
+        if (blocks == null) {
+            blocks = new ArrayList<>();
+        }
+        if (!Files.isRegularFile(blockLog)) {
+            return;
+        }
+        for (String line : Files.readAllLines(blockLog, StandardCharsets.UTF_8)) {
+            try {
+                BlockBlobUploader.Block block = LINE_GSON.fromJson(line, BlockBlobUploader.Block.class);
+                if (block != null && block.id() != null) {
+                    blocks.add(block);
+                }
+            } catch (RuntimeException e) {
+                // Cut short by a crash while it was written; that block is simply sent again
+            }
+        }
+    }
+
+    public synchronized List<BlockBlobUploader.Block> getAcknowledgedBlocks() {
+        return List.copyOf(blocks);
+    }
+
+    public synchronized long getAcknowledgedBytes() {
+        return blocks.stream().mapToLong(BlockBlobUploader.Block::length).sum();
+    }
+
+    /** Forgets uploaded blocks, e.g. when Intune hands out a new storage location; {@link #save()} to persist. */
+    public synchronized void resetBlocks() {
+        blocks.clear();
+        blocksCommitted = false;
+    }
+
+    /** True if the SAS URI is missing or expires within the given number of seconds. */
+    public synchronized boolean isStorageUriExpiring(long marginSeconds) {
+        if (storageUri == null) {
+            return true;
+        }
+        if (storageUriExpiry == null) {
+            return false;
+        }
+        try {
+            Instant expiry = OffsetDateTime.parse(storageUriExpiry).toInstant();
+            return Instant.now().plusSeconds(marginSeconds).isAfter(expiry);
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    public synchronized String getAppId() {
+        return appId;
+    }
+
+    public synchronized void setAppId(String appId) {
+        this.appId = appId;
+    }
+
+    /** Hash of the details the journaled app was created with (see {@link #setAppId}). */
+    public synchronized String getAppDetailsHash() {
+        return appDetailsHash;
+    }
+
+    public synchronized void setAppDetailsHash(String appDetailsHash) {
+        this.appDetailsHash = appDetailsHash;
+    }
+
+    public synchronized String getContentVersionId() {
+        return contentVersionId;
+    }
+
+    public synchronized void setContentVersionId(String contentVersionId) {
+        this.contentVersionId = contentVersionId;
+    }
+
+    public synchronized String getFileId() {
+        return fileId;
+    }
+
+    public synchronized void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public synchronized String getStorageUri() {
+        return storageUri;
+    }
+
+    public synchronized void setStorageUri(String storageUri, String expiry) {
+        this.storageUri = storageUri;
+        this.storageUriExpiry = expiry;
+    }
+
+    public synchronized boolean isBlocksCommitted() {
+        return blocksCommitted;
+    }
+
+    public synchronized void setBlocksCommitted(boolean blocksCommitted) {
+        this.blocksCommitted = blocksCommitted;
+    }
+
+    public synchronized boolean isFileCommitted() {
+        return fileCommitted;
+    }
+
+    public synchronized void setFileCommitted(boolean fileCommitted) {
+        this.fileCommitted = fileCommitted;
+    }
+}
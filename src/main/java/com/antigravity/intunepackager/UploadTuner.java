@@ -0,0 +1,238 @@
+package com.antigravity.intunepackager;
+
+import java.util.logging.Logger;
+
+/**
+ * Chooses the block size and the number of blocks in flight for one blob
+ * upload from what the upload measures as it runs.
+ *
+ * Blocks are grouped into rounds of at least one window's worth of blocks
+ * sent with the same settings. After each round the tuner probes one step
+ * up, first one more block in flight, then a block twice the size, and
+ * keeps the step only if the round's throughput rose by at least
+ * {@link #MIN_GAIN}. A round with retried or failed blocks (throttling,
+ * timeouts, server errors) halves the blocks in flight. Once neither knob
+ * helps the settings are held, and probing starts again after a while so
+ * a link that got faster is noticed.
+ *
+ * Every change is logged with the throughput and average block round trip
+ * that led to it.
+ */
+public class UploadTuner {
+    private static final Logger LOGGER = Logger.getLogger(UploadTuner.class.getName());
+
+    private static final int MB = 1024 * 1024;
+    public static final int MIN_BLOCK_SIZE = MB;
+    public static final int INITIAL_BLOCK_SIZE = 4 * MB;
+    /** Azure accepts up to 4000 MiB; bigger blocks only cost memory and make retries more expensive. */
+    public static final int MAX_BLOCK_SIZE = 64 * MB;
+    /**
+     * Big payloads start with blocks large enough to need no more than this
+     * many, so per-block overhead stays a small share of the transfer and
+     * the block list stays well under {@link BlockBlobUploader#MAX_BLOCKS}.
+     */
+    static final int TARGET_BLOCKS = 10_000;
+    /** Most block data one upload holds in memory at once. */
+    static final long MAX_BUFFERED_BYTES = 256L * MB;
+    private static final int INITIAL_IN_FLIGHT = 2;
+    private static final double MIN_GAIN = 0.05;
+    private static final int MIN_ROUND_BLOCKS = 2;
+    private static final int SETTLED_ROUNDS_BEFORE_PROBE = 8;
+
+    private enum Probe {
+        NONE, IN_FLIGHT, BLOCK_SIZE
+    }
+
+    private final boolean adaptive;
+    private final int maxInFlight;
+    private final int maxBlockSize;
+    private int blockSize;
+    private int inFlight;
+    private int generation;
+    private int adjustments;
+
+    private Probe probe = Probe.NONE;
+    private int previousBlockSize;
+    private int previousInFlight;
+    private double baseline;
+    private boolean inFlightSaturated;
+    private boolean blockSizeSaturated;
+    private int settledRounds;
+
+    private long roundFirstStart = Long.MAX_VALUE;
+    private long roundLastEnd;
+    private long roundBytes;
+    private long roundNanos;
+    private int roundBlocks;
+    private boolean roundCongested;
+
+    private UploadTuner(boolean adaptive, int blockSize, int inFlight, int maxInFlight) {
+        this.adaptive = adaptive;
+        this.blockSize = blockSize;
+        this.inFlight = inFlight;
+        this.maxInFlight = maxInFlight;
+        this.maxBlockSize = Math.max(MAX_BLOCK_SIZE, blockSize);
+    }
+
+    /**
+     * Starts small (larger for payloads that would otherwise need more than
+     * {@link #TARGET_BLOCKS} blocks) and tunes itself, never exceeding
+     * {@code maxInFlight} blocks in flight.
+     */
+    public static UploadTuner adaptive(int maxInFlight, long payloadBytes) {
+        int max = Math.max(1, maxInFlight);
+        return new UploadTuner(true, initialBlockSize(payloadBytes), Math.min(INITIAL_IN_FLIGHT, max), max);
+    }
+
+    /** {@link #INITIAL_BLOCK_SIZE}, or whole MiB enough to cut the payload into {@link #TARGET_BLOCKS}. */
+    static int initialBlockSize(long payloadBytes) {
+        long perBlock = (payloadBytes + TARGET_BLOCKS - 1) / TARGET_BLOCKS;
+        long rounded = (perBlock + MB - 1) / MB * MB;
+        return (int) Math.min(BlockBlobUploader.MAX_PUT_BLOCK_SIZE / MB * MB, Math.max(INITIAL_BLOCK_SIZE, rounded));
+    }
+
+    /** Always the given settings, for comparisons. */
+    public static UploadTuner fixed(int blockSize, int inFlight) {
+        return new UploadTuner(false, blockSize, Math.max(1, inFlight), Math.max(1, inFlight));
+    }
+
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /** Settings generation; blocks report it back so rounds only count blocks sent with the current settings. */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Feeds one finished block (including its retries) back into the tuner.
+     *
+     * @param succeeded false if the block ultimately failed.
+     */
+    public synchronized void onBlock(int blockGeneration, long startNanos, long endNanos, int bytes, int attempts,
+            boolean succeeded) {
+        if (!adaptive || blockGeneration != generation) {
+            return;
+        }
+        roundFirstStart = Math.min(roundFirstStart, startNanos);
+        roundLastEnd = Math.max(roundLastEnd, endNanos);
+        roundBlocks++;
+        roundNanos += endNanos - startNanos;
+        if (succeeded) {
+            roundBytes += bytes;
+        }
+        if (!succeeded || attempts > 1) {
+            roundCongested = true;
+        }
+        if (roundBlocks >= Math.max(MIN_ROUND_BLOCKS, inFlight) || roundCongested) {
+            endRound();
+        }
+    }
+
+    /** E.g. "8 MiB blocks, 6 in flight". */
+    public synchronized String describeSettings() {
+        return blockSize / MB + " MiB blocks, " + inFlight + " in flight";
+    }
+
+    /** Current settings and how they were reached, for reports. */
+    public synchronized String describe() {
+        return adaptive
+                ? "adaptive, " + describeSettings() + " after " + adjustments + " adjustment(s)"
+                : "fixed, " + describeSettings();
+    }
+
+    private void endRound() {
+        long span = roundLastEnd - roundFirstStart;
+        double rate = Telemetry.megabytesPerSecond(roundBytes, span);
+        long avgRttMillis = roundNanos / roundBlocks / 1_000_000;
+        String measured = String.format("%.1f MB/s, avg block round trip %d ms", rate, avgRttMillis);
+
+        if (roundCongested) {
+            // Multiplicative decrease: back off hard, then climb again one block at a time
+            int reduced = Math.max(1, inFlight / 2);
+            if (probe != Probe.NONE) {
+                blockSize = previousBlockSize;
+            }
+            probe = Probe.NONE;
+            inFlightSaturated = false;
+            baseline = 0;
+            apply(blockSize, reduced, "retries or failures at " + measured);
+            return;
+        }
+
+        if (probe == Probe.NONE) {
+            baseline = rate;
+            if (++settledRounds >= SETTLED_ROUNDS_BEFORE_PROBE) {
+                inFlightSaturated = false;
+                blockSizeSaturated = false;
+                settledRounds = 0;
+            }
+            startProbe(measured);
+            return;
+        }
+
+        if (rate >= baseline * (1 + MIN_GAIN)) {
+            LOGGER.info("Upload tuning: keeping " + describeSettings() + " (" + measured + ", was "
+                    + String.format("%.1f MB/s", baseline) + ")");
+            baseline = rate;
+            probe = Probe.NONE;
+            startProbe(measured);
+        } else {
+            if (probe == Probe.IN_FLIGHT) {
+                inFlightSaturated = true;
+            } else {
+                blockSizeSaturated = true;
+            }
+            probe = Probe.NONE;
+            apply(previousBlockSize, previousInFlight, "no gain from " + describeSettings() + " (" + measured
+                    + " vs " + String.format("%.1f MB/s", baseline) + ")");
+            startProbe(null);
+        }
+    }
+
+    private void startProbe(String measured) {
+        if (!inFlightSaturated && inFlight < maxInFlight && fits(blockSize, inFlight + 1)) {
+            probe = Probe.IN_FLIGHT;
+            previousBlockSize = blockSize;
+            previousInFlight = inFlight;
+            apply(blockSize, inFlight + 1, measured != null ? "probing at " + measured : "probing");
+        } else if (!blockSizeSaturated && blockSize * 2L <= maxBlockSize && fits(blockSize * 2, inFlight)) {
+            probe = Probe.BLOCK_SIZE;
+            previousBlockSize = blockSize;
+            previousInFlight = inFlight;
+            apply(blockSize * 2, inFlight, measured != null ? "probing at " + measured : "probing");
+        } else {
+            resetRound();
+        }
+    }
+
+    private static boolean fits(int blockSize, int inFlight) {
+        return (long) blockSize * inFlight <= MAX_BUFFERED_BYTES;
+    }
+
+    private void apply(int newBlockSize, int newInFlight, String reason) {
+        if (newBlockSize != blockSize || newInFlight != inFlight) {
+            String from = describeSettings();
+            blockSize = Math.max(MIN_BLOCK_SIZE, newBlockSize);
+            inFlight = Math.max(1, Math.min(maxInFlight, newInFlight));
+            adjustments++;
+            LOGGER.info("Upload tuning: " + from + " -> " + describeSettings() + " (" + reason + ")");
+        }
+        generation++;
+        resetRound();
+    }
+
+    private void resetRound() {
+        roundFirstStart = Long.MAX_VALUE;
+        roundLastEnd = 0;
+        roundBytes = 0;
+        roundNanos = 0;
+        roundBlocks = 0;
+        roundCongested = false;
+    }
+}